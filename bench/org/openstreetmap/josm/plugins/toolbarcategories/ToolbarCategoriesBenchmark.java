@@ -0,0 +1,248 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.awt.event.ActionEvent;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import javax.swing.AbstractAction;
+import javax.swing.Action;
+import javax.swing.JMenu;
+import javax.swing.JPopupMenu;
+import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.plugins.PluginInformation;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Headless benchmarks of the category handling against a synthetic toolbar of stub
+ * actions and in-memory preferences. Run with {@code ant benchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ToolbarCategoriesBenchmark {
+  private static final String KEY_LIST_NAMES = ToolbarCategoriesPlugin.class.getSimpleName()+".namesList";
+  private static final String KEY_LIST_ITEMS = ToolbarCategoriesPlugin.class.getSimpleName()+".itemsList";
+  private static final String KEY_SNAPSHOT = ToolbarCategoriesPlugin.class.getSimpleName()+".resolvedLayout";
+  
+  @State(Scope.Thread)
+  public static class Fixture {
+    @Param({"50"})
+    public int categories;
+    
+    @Param({"1000"})
+    public int buttons;
+    
+    /** share of the toolbar buttons put into categories */
+    @Param({"0.5"})
+    public double categorized;
+    
+    JToolBar toolbar;
+    List<Action> actions;
+    ToolbarCategoriesPlugin plugin;
+    JMenu presetMenu;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      Preferences pref = new Preferences();
+      pref.enableSaveOnPut(false);
+      Config.setPreferencesInstance(pref);
+      
+      actions = new ArrayList<>(buttons);
+      
+      for(int i = 0; i < buttons; i++) {
+        actions.add(new StubAction("stub-"+i));
+      }
+      
+      List<String> names = new ArrayList<>(categories);
+      List<List<String>> items = new ArrayList<>(categories);
+      
+      for(int j = 0; j < categories; j++) {
+        names.add("category "+j);
+        items.add(new ArrayList<>());
+      }
+      
+      for(int i = 0; i < buttons*categorized; i++) {
+        List<String> list = items.get(i%categories);
+        
+        if(list.size()%5 == 4) {
+          list.add(Category.SEPARATOR);
+        }
+        
+        list.add("stub-"+i);
+      }
+      
+      pref.putList(KEY_LIST_NAMES, names);
+      pref.putListOfLists(KEY_LIST_ITEMS, items);
+      
+      toolbar = new JToolBar();
+      toolbar.setComponentPopupMenu(new JPopupMenu());
+      fillToolbar();
+      
+      presetMenu = createPresetMenu("presets", 3, 10);
+      
+      plugin = onEdt(() -> {
+        try {
+          return new ToolbarCategoriesPlugin(new PluginInformation(new ByteArrayInputStream(
+              "Manifest-Version: 1.0\nPlugin-Mainversion: 18759\n".getBytes(StandardCharsets.UTF_8)), "ToolbarCategories", null), new BenchmarkHost(this));
+        }
+        catch(Exception e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      
+      onEdt(plugin::load);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+      onEdt(plugin::destroy);
+    }
+    
+    void fillToolbar() {
+      toolbar.removeAll();
+      
+      for(Action a : actions) {
+        toolbar.add(a);
+      }
+    }
+    
+    private JMenu createPresetMenu(String name, int depth, int width) {
+      JMenu menu = new JMenu(new StubAction(name));
+      
+      for(int i = 0; i < width; i++) {
+        if(depth > 1) {
+          menu.add(createPresetMenu(name+"/"+i, depth-1, width));
+        }
+        else {
+          menu.add(new StubAction(name+"/"+i));
+        }
+      }
+      
+      return menu;
+    }
+  }
+  
+  /** Puts all buttons back on the toolbar before each {@link ToolbarCategoriesBenchmark#load(Fixture, Unloaded)}. */
+  @State(Scope.Thread)
+  public static class Unloaded {
+    /** whether the resolved layout snapshot written by the previous load is used, otherwise each toolbar id is looked up */
+    @Param({"true", "false"})
+    public boolean snapshot;
+    
+    @Setup(Level.Invocation)
+    public void setUp(Fixture f) throws Exception {
+      onEdt(f::fillToolbar);
+      
+      if(!snapshot) {
+        Config.getPref().putListOfLists(KEY_SNAPSHOT, null);
+      }
+    }
+  }
+  
+  @Benchmark
+  public int load(Fixture f, Unloaded u) throws Exception {
+    return onEdt(() -> {
+      f.plugin.load();
+      return f.plugin.getModel().size();
+    });
+  }
+  
+  @Benchmark
+  public boolean save(Fixture f) throws Exception {
+    return onEdt(() -> {
+      f.plugin.save();
+      f.plugin.getPersister().flush();
+      return f.plugin.getPersister().isDirty();
+    });
+  }
+  
+  @Benchmark
+  public int updateMenu(Fixture f) throws Exception {
+    return onEdt(() -> {
+      f.plugin.updateMenu();
+      int count = f.toolbar.getComponentPopupMenu().getComponentCount();
+      f.plugin.removeMenu();
+      return count;
+    });
+  }
+  
+  @Benchmark
+  public Object createMenu(Fixture f) throws Exception {
+    return onEdt(() -> f.plugin.findMenuItem(f.plugin.createMenu(f.presetMenu)));
+  }
+  
+  @Benchmark
+  public boolean enabledPropagation(Fixture f) throws Exception {
+    return onEdt(() -> {
+      for(Action a : f.actions) {
+        a.setEnabled(false);
+      }
+      for(Action a : f.actions) {
+        a.setEnabled(true);
+      }
+      
+      return f.plugin.getModel().getCategories().iterator().next().getButton().isEnabled();
+    });
+  }
+  
+  static <T> T onEdt(Supplier<T> task) throws Exception {
+    AtomicReference<T> result = new AtomicReference<>();
+    SwingUtilities.invokeAndWait(() -> result.set(task.get()));
+    return result.get();
+  }
+  
+  static void onEdt(Runnable task) throws Exception {
+    SwingUtilities.invokeAndWait(task);
+  }
+  
+  private static final class BenchmarkHost implements ToolbarHost {
+    private final Fixture fixture;
+    
+    private BenchmarkHost(Fixture fixture) {
+      this.fixture = fixture;
+    }
+    
+    @Override
+    public JToolBar getControl() {
+      return fixture.toolbar;
+    }
+    
+    @Override
+    public void refresh() {
+      fixture.fillToolbar();
+    }
+  }
+  
+  private static final class StubAction extends AbstractAction {
+    private StubAction(String id) {
+      super(id);
+      putValue("toolbar", id);
+    }
+    
+    @Override
+    public void actionPerformed(ActionEvent e) {}
+  }
+}
@@ -0,0 +1,301 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.AbstractAction;
+import javax.swing.Action;
+import javax.swing.JButton;
+import javax.swing.JPopupMenu;
+import javax.swing.JSeparator;
+import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
+
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.plugins.PluginInformation;
+import org.openstreetmap.josm.plugins.toolbarcategories.EventTrace.Event;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Replays event traces recorded with {@code Start event trace} in the diagnostics of the
+ * plugin headless against a toolbar of stub actions and in-memory preferences, with the
+ * virtual clock of the {@link CoalescingScheduler}. Reports how many reloads, saves and
+ * EDT tasks the events of each trace cause after the categories were loaded. Run with
+ * {@code ant replay -Dtrace.files=...}.
+ * <p>
+ * Toolbar changes made through the menus of the plugin are replayed as plain toolbar
+ * changes, only the creation of a category is replayed as such.
+ */
+public final class TraceReplay {
+  private static final String KEY_LIST_NAMES = ToolbarCategoriesPlugin.class.getSimpleName()+".namesList";
+  private static final String KEY_LIST_ITEMS = ToolbarCategoriesPlugin.class.getSimpleName()+".itemsList";
+  /** virtual time of the start of a trace, the guards of the plugin compare against times before it */
+  private static final long START = 1_000_000;
+  /** time after the last event to let pending tasks run */
+  private static final long SETTLE = 10_000;
+  
+  private final List<Event> events;
+  private final JToolBar toolbar;
+  private final List<String> configuration;
+  private final Map<String, Action> actions;
+  private int skipped;
+  
+  private TraceReplay(List<Event> events) {
+    this.events = events;
+    toolbar = new JToolBar();
+    toolbar.setComponentPopupMenu(new JPopupMenu());
+    configuration = new ArrayList<>();
+    actions = new HashMap<>();
+  }
+  
+  public static void main(String[] args) throws Exception {
+    if(args.length == 0) {
+      System.err.println("usage: TraceReplay <trace file>...");
+      System.exit(2);
+    }
+    
+    for(String file : args) {
+      List<Event> events = EventTrace.parse(Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8));
+      StringBuilder report = new StringBuilder();
+      SwingUtilities.invokeAndWait(() -> new TraceReplay(events).run(file, report));
+      System.out.print(report);
+    }
+    
+    System.exit(0);
+  }
+  
+  private void run(String name, StringBuilder report) {
+    Preferences pref = new Preferences();
+    pref.enableSaveOnPut(false);
+    Config.setPreferencesInstance(pref);
+    
+    List<String> names = new ArrayList<>();
+    List<List<String>> items = new ArrayList<>();
+    
+    for(Event e : events) {
+      if(EventTrace.TOOLBAR.equals(e.kind)) {
+        configuration.clear();
+        
+        for(String entry : e.fields) {
+          configuration.add(getId(entry));
+        }
+      }
+      else if(EventTrace.CATEGORY.equals(e.kind) && !e.fields.isEmpty()) {
+        names.add(e.get(0));
+        items.add(new ArrayList<>(e.fields.subList(1, e.fields.size())));
+      }
+    }
+    
+    pref.putList(KEY_LIST_NAMES, names);
+    pref.putListOfLists(KEY_LIST_ITEMS, items);
+    fillToolbar();
+    
+    ToolbarCategoriesPlugin plugin = createPlugin();
+    CoalescingScheduler scheduler = plugin.getScheduler();
+    scheduler.useVirtualTime(START);
+    plugin.load();
+    plugin.addToolbarListeners();
+    plugin.getInstrumentation().setEnabled(true);
+    plugin.getInstrumentation().reset();
+    
+    int writes = plugin.getPersister().getWrites();
+    Map<String, Integer> runs = new HashMap<>();
+    
+    for(String kind : scheduler.getRunKinds()) {
+      runs.put(kind, scheduler.getRunCount(kind));
+    }
+    
+    int replayed = 0;
+    long last = 0;
+    
+    for(Event e : events) {
+      if(EventTrace.TOOLBAR.equals(e.kind) || EventTrace.CATEGORY.equals(e.kind)) {
+        continue;
+      }
+      
+      scheduler.advanceTime(Math.max(0, START + e.time - scheduler.now()));
+      replay(plugin, e);
+      replayed++;
+      last = e.time;
+    }
+    
+    scheduler.advanceTime(SETTLE);
+    
+    Instrumentation stats = plugin.getInstrumentation();
+    int tasks = 0;
+    StringBuilder perKind = new StringBuilder();
+    
+    for(String kind : scheduler.getRunKinds()) {
+      int count = scheduler.getRunCount(kind) - runs.getOrDefault(kind, 0);
+      tasks += count;
+      
+      if(count > 0) {
+        perKind.append(perKind.length() > 0 ? ", " : "").append(kind).append(' ').append(count);
+      }
+    }
+    
+    report.append(String.format("%s: %d events over %.1f s, %d skipped%n", name, replayed, last / 1000.0, skipped));
+    report.append(String.format("  %-18s %6d%n", "reloads", stats.getCount(Instrumentation.LOAD)));
+    report.append(String.format("  %-18s %6d%n", "reconciles", stats.getCount(Instrumentation.RECONCILE)));
+    report.append(String.format("  %-18s %6d%n", "saves", stats.getCount(Instrumentation.SAVE)));
+    report.append(String.format("  %-18s %6d%n", "layout writes", plugin.getPersister().getWrites() - writes));
+    report.append(String.format("  %-18s %6d%n", "additions handled", stats.getCount(Instrumentation.COMPONENT_ADDED)));
+    report.append(String.format("  %-18s %6d  %s%n", "EDT tasks", tasks, perKind));
+    
+    plugin.destroy();
+  }
+  
+  private ToolbarCategoriesPlugin createPlugin() {
+    try {
+      return new ToolbarCategoriesPlugin(new PluginInformation(new ByteArrayInputStream(
+          "Manifest-Version: 1.0\nPlugin-Mainversion: 18759\n".getBytes(StandardCharsets.UTF_8)), "ToolbarCategories", null), new ReplayHost());
+    }
+    catch(Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  private void replay(ToolbarCategoriesPlugin plugin, Event e) {
+    switch(e.kind) {
+      case EventTrace.ADDED:
+        add(e.get(0), parseIndex(e.get(1)));
+        break;
+      case EventTrace.REMOVED:
+        remove(e.get(0));
+        break;
+      case EventTrace.ENABLED:
+        getAction(e.get(0)).setEnabled(Boolean.parseBoolean(e.get(1)));
+        break;
+      case EventTrace.PREFERENCE:
+        // values that are not a single string were written as a result of other events
+        if(e.get(1) != null) {
+          Config.getPref().put(e.get(0), e.get(1));
+        }
+        else {
+          skipped++;
+        }
+        break;
+      case EventTrace.CREATE:
+        JButton button = findButton(e.get(1));
+        
+        if(button != null) {
+          plugin.createCategory(button, e.get(0));
+        }
+        else {
+          skipped++;
+        }
+        break;
+      default:
+        skipped++;
+    }
+  }
+  
+  private void fillToolbar() {
+    toolbar.removeAll();
+    
+    for(String id : configuration) {
+      add(id, -1);
+    }
+  }
+  
+  private void add(String id, int index) {
+    Component c;
+    
+    if(EventTrace.SEPARATOR.equals(id)) {
+      c = new JToolBar.Separator();
+    }
+    else if(id == null || id.isEmpty()) {
+      c = new JButton();
+    }
+    else {
+      c = new JButton(getAction(id));
+    }
+    
+    toolbar.add(c, index < 0 ? -1 : Math.min(index, toolbar.getComponentCount()));
+  }
+  
+  /** Removes the first component with the given toolbar id, category buttons are left alone. */
+  private void remove(String id) {
+    for(int i = 0; i < toolbar.getComponentCount(); i++) {
+      Component c = toolbar.getComponent(i);
+      boolean matches;
+      
+      if(EventTrace.SEPARATOR.equals(id)) {
+        matches = c instanceof JSeparator;
+      }
+      else if(id == null || id.isEmpty()) {
+        matches = c instanceof JButton && ((JButton)c).getAction() == null;
+      }
+      else {
+        matches = id.equals(ToolbarCategoriesPlugin.getToolbarId(c));
+      }
+      
+      if(matches) {
+        toolbar.remove(i);
+        return;
+      }
+    }
+    
+    skipped++;
+  }
+  
+  private JButton findButton(String id) {
+    for(Component c : toolbar.getComponents()) {
+      if(c instanceof JButton && id != null && id.equals(ToolbarCategoriesPlugin.getToolbarId(c))) {
+        return (JButton)c;
+      }
+    }
+    
+    return null;
+  }
+  
+  private Action getAction(String id) {
+    return actions.computeIfAbsent(id, StubAction::new);
+  }
+  
+  private static int parseIndex(String index) {
+    try {
+      return index != null ? Integer.parseInt(index) : -1;
+    }
+    catch(NumberFormatException e) {
+      return -1;
+    }
+  }
+  
+  /** @return the toolbar id of an entry of the toolbar configuration of JOSM, without its parameters */
+  private static String getId(String entry) {
+    int parameters = entry.indexOf('(');
+    return parameters > 0 && entry.endsWith(")") ? entry.substring(0, parameters) : entry;
+  }
+  
+  private final class ReplayHost implements ToolbarHost {
+    @Override
+    public JToolBar getControl() {
+      return toolbar;
+    }
+    
+    @Override
+    public void refresh() {
+      fillToolbar();
+    }
+  }
+  
+  private static final class StubAction extends AbstractAction {
+    private StubAction(String id) {
+      super(id);
+      putValue("toolbar", id);
+    }
+    
+    @Override
+    public void actionPerformed(ActionEvent e) {}
+  }
+}
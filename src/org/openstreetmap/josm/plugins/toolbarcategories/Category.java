@@ -0,0 +1,154 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import javax.swing.JButton;
+import javax.swing.JPopupMenu;
+
+/**
+ * A toolbar category: its entries in the order they are shown and persisted and
+ * the Swing views created for it by the plugin.
+ * <p>
+ * Entries are toolbar ids of actions, {@link #SEPARATOR} or references to nested
+ * categories made with {@link #subcategory(String)}. The popup menu holds exactly one
+ * component for each entry at the same index. Nested categories have a parent and no
+ * toolbar button, their popup menu is only created when they are opened.
+ */
+final class Category {
+  static final String SEPARATOR = "-S-E-P-A-R-A-T-O-R-";
+  static final String SUBCATEGORY = "-S-U-B-C-A-T-E-G-O-R-Y-";
+  
+  private final int id;
+  private final String name;
+  private final List<String> entries;
+  
+  private JPopupMenu menu;
+  private JButton button;
+  private Category parent;
+  
+  private int modCount;
+  
+  Category(int id, String name) {
+    this.id = id;
+    this.name = name;
+    entries = new ArrayList<>();
+  }
+  
+  int getId() {
+    return id;
+  }
+  
+  String getName() {
+    return name;
+  }
+  
+  List<String> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+  
+  int size() {
+    return entries.size();
+  }
+  
+  String getEntry(int index) {
+    return entries.get(index);
+  }
+  
+  void addEntry(int index, String entry) {
+    EdtConfinement.check("category entries");
+    entries.add(index < 0 ? entries.size() : index, entry);
+    modCount++;
+  }
+  
+  String removeEntry(int index) {
+    EdtConfinement.check("category entries");
+    modCount++;
+    return entries.remove(index);
+  }
+  
+  void setEntries(List<String> entries) {
+    EdtConfinement.check("category entries");
+    if(!this.entries.equals(entries)) {
+      this.entries.clear();
+      this.entries.addAll(entries);
+      modCount++;
+    }
+  }
+  
+  /** Marks the views of the entries as changed while the entries stayed the same, e.g. an item got a new action. */
+  void viewsChanged() {
+    EdtConfinement.check("category entries");
+    modCount++;
+  }
+  
+  /** @return a counter increased on every change of the entries or their views, for caches of derived views */
+  int getModCount() {
+    return modCount;
+  }
+  
+  /** @return {@code true} if at least one entry is not a separator */
+  boolean hasItems() {
+    for(String entry : entries) {
+      if(!isSeparator(entry)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  JPopupMenu getMenu() {
+    return menu;
+  }
+  
+  JButton getButton() {
+    return button;
+  }
+  
+  void setViews(JPopupMenu menu, JButton button) {
+    EdtConfinement.check("category views");
+    this.menu = menu;
+    this.button = button;
+  }
+  
+  /** @return the category this one is nested in, {@code null} for a category on the toolbar */
+  Category getParent() {
+    return parent;
+  }
+  
+  void setParent(Category parent) {
+    EdtConfinement.check("category parent");
+    this.parent = parent;
+  }
+  
+  /** @return the names of the categories from the outermost one to this one */
+  String getPath(String separator) {
+    return parent != null ? parent.getPath(separator)+separator+name : name;
+  }
+  
+  static boolean isSeparator(String entry) {
+    return Objects.equals(SEPARATOR, entry);
+  }
+  
+  /** @return the entry referencing the nested category of the given name */
+  static String subcategory(String name) {
+    return SUBCATEGORY+name;
+  }
+  
+  static boolean isSubcategory(String entry) {
+    return entry != null && entry.startsWith(SUBCATEGORY);
+  }
+  
+  /** @return the name of the category referenced by the given entry */
+  static String getSubcategoryName(String entry) {
+    return entry.substring(SUBCATEGORY.length());
+  }
+  
+  @Override
+  public String toString() {
+    return name+"#"+id+entries;
+  }
+}
@@ -0,0 +1,249 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.swing.AbstractListModel;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
+import javax.swing.JScrollPane;
+import javax.swing.JSeparator;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+
+/**
+ * Popup for categories with many items: a filter field above a list that only renders
+ * the visible rows. The rows are the items of the category menu, so choosing a row
+ * performs the same click as choosing the item in the menu, a row of a submenu opens
+ * the submenu. Separators are shown while no filter is entered.
+ */
+final class CategoryListPopup extends JPopupMenu {
+  private static final int VISIBLE_ROWS = 20;
+  
+  private final JPopupMenu menu;
+  private final JTextField filter;
+  private final JList<Component> list;
+  private final Rows rows;
+  
+  CategoryListPopup(JPopupMenu menu) {
+    this.menu = menu;
+    
+    rows = new Rows();
+    filter = new JTextField();
+    list = new JList<>(rows);
+    list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    list.setCellRenderer(new Renderer());
+    list.setFocusable(false);
+    
+    filter.getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        update();
+      }
+      
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        update();
+      }
+      
+      @Override
+      public void changedUpdate(DocumentEvent e) {}
+    });
+    
+    filter.addKeyListener(new KeyAdapter() {
+      @Override
+      public void keyPressed(KeyEvent e) {
+        if(e.getKeyCode() == KeyEvent.VK_DOWN) {
+          select(list.getSelectedIndex() + 1, 1);
+          e.consume();
+        }
+        else if(e.getKeyCode() == KeyEvent.VK_UP) {
+          select(list.getSelectedIndex() - 1, -1);
+          e.consume();
+        }
+        else if(e.getKeyCode() == KeyEvent.VK_ENTER) {
+          choose(list.getSelectedIndex());
+          e.consume();
+        }
+        else if(e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+          setVisible(false);
+          e.consume();
+        }
+      }
+    });
+    
+    list.addMouseListener(new MouseAdapter() {
+      @Override
+      public void mouseReleased(MouseEvent e) {
+        if(SwingUtilities.isLeftMouseButton(e)) {
+          choose(list.locationToIndex(e.getPoint()));
+        }
+      }
+    });
+    
+    setLayout(new BorderLayout());
+    add(filter, BorderLayout.NORTH);
+    add(new JScrollPane(list, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER), BorderLayout.CENTER);
+  }
+  
+  @Override
+  public void show(Component invoker, int x, int y) {
+    filter.setText("");
+    update();
+    list.setFixedCellHeight(getRowHeight());
+    list.setVisibleRowCount(Math.min(VISIBLE_ROWS, Math.max(1, rows.getSize())));
+    pack();
+    super.show(invoker, x, y);
+    filter.requestFocusInWindow();
+  }
+  
+  /** @return the height of the highest of the first items of the menu, the items are expected to be of about the same height */
+  private int getRowHeight() {
+    int height = new JMenuItem("X").getPreferredSize().height;
+    
+    for(int i = 0; i < Math.min(VISIBLE_ROWS, menu.getComponentCount()); i++) {
+      if(menu.getComponent(i) instanceof JMenuItem) {
+        height = Math.max(height, menu.getComponent(i).getPreferredSize().height);
+      }
+    }
+    
+    return height;
+  }
+  
+  private void update() {
+    String text = filter.getText().trim().toLowerCase(Locale.ROOT);
+    List<Component> items = new ArrayList<>(menu.getComponentCount());
+    
+    for(Component c : menu.getComponents()) {
+      if(c instanceof JMenuItem) {
+        String name = ((JMenuItem)c).getText();
+        
+        if(text.isEmpty() || (name != null && name.toLowerCase(Locale.ROOT).contains(text))) {
+          items.add(c);
+        }
+      }
+      else if(c instanceof JPopupMenu.Separator && text.isEmpty()) {
+        items.add(c);
+      }
+    }
+    
+    rows.setItems(items);
+    select(0, 1);
+  }
+  
+  /** Selects the first enabled item from {@code index} on in the given direction. */
+  private void select(int index, int direction) {
+    for(int i = index; i >= 0 && i < rows.getSize(); i += direction) {
+      Component c = rows.getElementAt(i);
+      
+      if(c instanceof JMenuItem && c.isEnabled()) {
+        list.setSelectedIndex(i);
+        list.ensureIndexIsVisible(i);
+        return;
+      }
+    }
+    
+    if(!(list.getSelectedValue() instanceof JMenuItem)) {
+      list.clearSelection();
+    }
+  }
+  
+  private void choose(int index) {
+    Component c = index >= 0 && index < rows.getSize() ? rows.getElementAt(index) : null;
+    
+    if(!(c instanceof JMenuItem) || !c.isEnabled()) {
+      return;
+    }
+    
+    if(c instanceof JMenu) {
+      JMenu submenu = (JMenu)c;
+      
+      for(MenuListener l : submenu.getMenuListeners()) {
+        l.menuSelected(new MenuEvent(submenu));
+      }
+      
+      Component invoker = getInvoker();
+      Rectangle r = list.getCellBounds(index, index);
+      Point p = SwingUtilities.convertPoint(list, r.x + r.width, r.y, invoker);
+      
+      setVisible(false);
+      submenu.getPopupMenu().show(invoker, p.x, p.y);
+    }
+    else {
+      setVisible(false);
+      ((JMenuItem)c).doClick(0);
+    }
+  }
+  
+  private static final class Rows extends AbstractListModel<Component> {
+    private List<Component> items = new ArrayList<>();
+    
+    private void setItems(List<Component> items) {
+      int old = this.items.size();
+      this.items = items;
+      
+      if(old > 0) {
+        fireIntervalRemoved(this, 0, old - 1);
+      }
+      
+      if(!items.isEmpty()) {
+        fireIntervalAdded(this, 0, items.size() - 1);
+      }
+    }
+    
+    @Override
+    public int getSize() {
+      return items.size();
+    }
+    
+    @Override
+    public Component getElementAt(int index) {
+      return items.get(index);
+    }
+  }
+  
+  private static final class Renderer extends DefaultListCellRenderer {
+    private final JPanel separator;
+    
+    private Renderer() {
+      separator = new JPanel(new GridBagLayout());
+      separator.setOpaque(false);
+      separator.add(new JSeparator(), new GridBagConstraints(0, 0, 1, 1, 1, 0, GridBagConstraints.CENTER, GridBagConstraints.HORIZONTAL, new Insets(0, 0, 0, 0), 0, 0));
+    }
+    
+    @Override
+    public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+      if(!(value instanceof JMenuItem)) {
+        return separator;
+      }
+      
+      JMenuItem item = (JMenuItem)value;
+      super.getListCellRendererComponent(list, item instanceof JMenu ? item.getText()+"  \u25B8" : item.getText(), index, isSelected && item.isEnabled(), false);
+      setIcon(item.getIcon());
+      setEnabled(item.isEnabled());
+      
+      return this;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JButton;
+import javax.swing.JPopupMenu;
+
+/**
+ * All toolbar categories in toolbar order with hashed lookup by id, name and view.
+ * Does not need a toolbar, the views are attached by the plugin when it creates them.
+ */
+final class CategoryModel {
+  private final Map<Integer, Category> categories;
+  private final Map<String, Category> byName;
+  private final Map<Object, Category> byView;
+  
+  private int nextId;
+  private int modCount;
+  
+  CategoryModel() {
+    categories = new LinkedHashMap<>();
+    byName = new HashMap<>();
+    byView = new HashMap<>();
+  }
+  
+  /**
+   * Adds a new category at the end.
+   * @param name the name of the category
+   * @return the new category
+   * @throws IllegalArgumentException if a category with that name exists already
+   */
+  Category add(String name) {
+    EdtConfinement.check("category model");
+    if(byName.containsKey(name)) {
+      throw new IllegalArgumentException("Category exists already: "+name);
+    }
+    
+    Category c = new Category(nextId++, name);
+    categories.put(c.getId(), c);
+    byName.put(name, c);
+    modCount++;
+    
+    return c;
+  }
+  
+  void remove(Category c) {
+    EdtConfinement.check("category model");
+    if(categories.remove(c.getId()) != null) {
+      byName.remove(c.getName());
+      detach(c);
+      modCount++;
+    }
+  }
+  
+  void attach(Category c, JPopupMenu menu, JButton button) {
+    detach(c);
+    c.setViews(menu, button);
+    
+    if(menu != null) {
+      byView.put(menu, c);
+    }
+    if(button != null) {
+      byView.put(button, c);
+    }
+    
+    modCount++;
+  }
+  
+  private void detach(Category c) {
+    if(c.getMenu() != null) {
+      byView.remove(c.getMenu());
+    }
+    if(c.getButton() != null) {
+      byView.remove(c.getButton());
+    }
+    
+    c.setViews(null, null);
+  }
+  
+  void clear() {
+    EdtConfinement.check("category model");
+    categories.clear();
+    byName.clear();
+    byView.clear();
+    modCount++;
+  }
+  
+  Category get(int id) {
+    return categories.get(id);
+  }
+  
+  Category getByName(String name) {
+    return byName.get(name);
+  }
+  
+  /** @return the category of the given category button or popup menu */
+  Category getByView(Object view) {
+    return view == null ? null : byView.get(view);
+  }
+  
+  Collection<Category> getCategories() {
+    return Collections.unmodifiableCollection(categories.values());
+  }
+  
+  /** @return a counter increased whenever categories are added, removed or get other views */
+  int getModCount() {
+    return modCount;
+  }
+  
+  int size() {
+    return categories.size();
+  }
+  
+  boolean isEmpty() {
+    return categories.isEmpty();
+  }
+  
+  /** Serializes the categories into the format of the names and items preferences. */
+  void writeLayout(List<String> names, List<List<String>> items) {
+    for(Category c : categories.values()) {
+      names.add(c.getName());
+      
+      List<String> entries = new ArrayList<>(c.size());
+      
+      for(String entry : c.getEntries()) {
+        if(entry != null) {
+          entries.add(entry);
+        }
+      }
+      
+      items.add(entries);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.Timer;
+
+/**
+ * Runs tasks once their kind of event has been quiet for the configured period.
+ * <p>
+ * Scheduling the same kind again before it fired replaces the task and restarts
+ * the quiet period, so a burst of events results in a single run. All kinds share
+ * one non-repeating Swing timer, tasks are run on the EDT and nothing is running
+ * while no task is pending.
+ */
+final class CoalescingScheduler {
+  private final Map<String, Integer> quietPeriods;
+  private final Map<String, Pending> pending;
+  /** kind -> number of tasks run */
+  private final Map<String, Integer> runs;
+  private final Timer timer;
+  
+  private boolean virtualTime;
+  private long virtualNow;
+  
+  CoalescingScheduler() {
+    quietPeriods = new HashMap<>();
+    pending = new LinkedHashMap<>();
+    runs = new LinkedHashMap<>();
+    timer = new Timer(0, e -> runDue());
+    timer.setRepeats(false);
+  }
+  
+  void setQuietPeriod(String kind, int millis) {
+    quietPeriods.put(kind, Math.max(0, millis));
+  }
+  
+  int getQuietPeriod(String kind) {
+    return quietPeriods.getOrDefault(kind, 0);
+  }
+  
+  synchronized long now() {
+    return virtualTime ? virtualNow : System.currentTimeMillis();
+  }
+  
+  synchronized void schedule(String kind, Runnable task) {
+    pending.put(kind, new Pending(kind, now() + getQuietPeriod(kind), task));
+    restartTimer();
+  }
+  
+  synchronized boolean isPending(String kind) {
+    return pending.containsKey(kind);
+  }
+  
+  /** @return the number of tasks of the given kind that were run */
+  synchronized int getRunCount(String kind) {
+    return runs.getOrDefault(kind, 0);
+  }
+  
+  /** @return the kinds of which tasks were run */
+  synchronized List<String> getRunKinds() {
+    return new ArrayList<>(runs.keySet());
+  }
+  
+  synchronized void cancel(String kind) {
+    pending.remove(kind);
+    restartTimer();
+  }
+  
+  synchronized void cancelAll() {
+    pending.clear();
+    timer.stop();
+  }
+  
+  /**
+   * Switches to a manually advanced clock starting at the given time, for tests
+   * and trace replays. While active the Swing timer is not used, due tasks are run
+   * by {@link #advanceTime(long)} on the calling thread.
+   */
+  synchronized void useVirtualTime(long start) {
+    virtualTime = true;
+    virtualNow = start;
+    timer.stop();
+  }
+  
+  void advanceTime(long millis) {
+    synchronized(this) {
+      if(!virtualTime) {
+        throw new IllegalStateException("virtual time not enabled");
+      }
+      
+      virtualNow += millis;
+    }
+    
+    runDue();
+  }
+  
+  private void restartTimer() {
+    if(virtualTime) {
+      return;
+    }
+    
+    if(pending.isEmpty()) {
+      timer.stop();
+    }
+    else {
+      long next = Long.MAX_VALUE;
+      
+      for(Pending p : pending.values()) {
+        next = Math.min(next, p.due);
+      }
+      
+      timer.setInitialDelay((int)Math.max(0, next - now()));
+      timer.restart();
+    }
+  }
+  
+  private void runDue() {
+    List<Runnable> due = new ArrayList<>();
+    
+    synchronized(this) {
+      long now = now();
+      
+      for(Iterator<Pending> it = pending.values().iterator(); it.hasNext();) {
+        Pending p = it.next();
+        
+        if(p.due <= now) {
+          due.add(p.task);
+          runs.merge(p.kind, 1, Integer::sum);
+          it.remove();
+        }
+      }
+      
+      restartTimer();
+    }
+    
+    for(Runnable task : due) {
+      task.run();
+    }
+  }
+  
+  private static final class Pending {
+    private final String kind;
+    private final long due;
+    private final Runnable task;
+    
+    private Pending(String kind, long due, Runnable task) {
+      this.kind = kind;
+      this.due = due;
+      this.task = task;
+    }
+  }
+}
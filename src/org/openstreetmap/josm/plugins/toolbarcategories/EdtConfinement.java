@@ -0,0 +1,34 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * The categories, their views and the state of the plugin are confined to the event
+ * dispatch thread, other threads only read preferences and hand the data over to the
+ * EDT. Mutations of the category model call {@link #check(String)}, with the check
+ * enabled a mutation on another thread fails at once instead of leaving the categories
+ * in a state that only shows later, like a category button with a wrong enabled state.
+ */
+final class EdtConfinement {
+  private static volatile boolean enabled;
+  
+  private EdtConfinement() {}
+  
+  static void setEnabled(boolean enabled) {
+    EdtConfinement.enabled = enabled;
+  }
+  
+  static boolean isEnabled() {
+    return enabled;
+  }
+  
+  /**
+   * @param what the mutated state, for the message
+   * @throws IllegalStateException if the check is enabled and not called on the EDT
+   */
+  static void check(String what) {
+    if(enabled && !SwingUtilities.isEventDispatchThread()) {
+      throw new IllegalStateException(what+" changed outside of the event dispatch thread on thread "+Thread.currentThread().getName());
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Records the events the plugin reacts to with their time, so timing dependent behavior
+ * can be replayed headless by {@code TraceReplay} in {@code bench}.
+ * <p>
+ * A trace starts with the toolbar configuration and the layout at the time recording
+ * began, followed by the events in the order they arrived with the milliseconds since the
+ * start. While not recording {@link #record(String, String...)} costs a single field read.
+ * The trace is written as one line per event with tab separated fields, lines starting
+ * with {@code #} are comments.
+ */
+final class EventTrace {
+  /** toolbar configuration, the fields are its entries */
+  static final String TOOLBAR = "toolbar";
+  /** category of the layout, the fields are its name and entries */
+  static final String CATEGORY = "category";
+  /** component added to the toolbar, the fields are its toolbar id and index */
+  static final String ADDED = "added";
+  /** component removed from the toolbar, the field is its toolbar id */
+  static final String REMOVED = "removed";
+  /** enabled state of a category item changed, the fields are its toolbar id and new state */
+  static final String ENABLED = "enabled";
+  /** preference changed, the fields are its key and the new value if it is a single string */
+  static final String PREFERENCE = "preference";
+  /** category created from a toolbar button, the fields are its name and the toolbar id of the button */
+  static final String CREATE = "create";
+  /** toolbar id recorded for separators, as in the toolbar configuration of JOSM */
+  static final String SEPARATOR = "|";
+  
+  private static final String HEADER = "# toolbar categories event trace";
+  
+  private final LongSupplier clock;
+  private final int limit;
+  private final List<Event> events;
+  /** whether events are added, cleared once the limit is reached */
+  private volatile boolean recording;
+  /** whether the trace was started and not stopped yet, also after it was truncated */
+  private boolean started;
+  private long start;
+  private boolean truncated;
+  
+  /**
+   * @param clock source of the event times
+   * @param limit number of events after which further events are dropped
+   */
+  EventTrace(LongSupplier clock, int limit) {
+    this.clock = clock;
+    this.limit = limit;
+    events = new ArrayList<>();
+  }
+  
+  /** @return whether events are recorded, {@code false} once the trace was truncated */
+  boolean isRecording() {
+    return recording;
+  }
+  
+  /** @return whether the trace was started and not stopped yet */
+  synchronized boolean isStarted() {
+    return started;
+  }
+  
+  /** Drops the previous trace and starts recording with the given toolbar configuration and layout. */
+  synchronized void start(List<String> toolbar, List<String> names, List<List<String>> items) {
+    events.clear();
+    truncated = false;
+    start = clock.getAsLong();
+    started = true;
+    recording = true;
+    
+    add(TOOLBAR, toolbar);
+    
+    for(int i = 0; i < Math.min(names.size(), items.size()); i++) {
+      List<String> fields = new ArrayList<>(items.get(i).size() + 1);
+      fields.add(names.get(i));
+      fields.addAll(items.get(i));
+      add(CATEGORY, fields);
+    }
+  }
+  
+  synchronized void stop() {
+    started = false;
+    recording = false;
+  }
+  
+  void record(String kind, String... fields) {
+    if(recording) {
+      add(kind, Arrays.asList(fields));
+    }
+  }
+  
+  private synchronized void add(String kind, List<String> fields) {
+    if(!recording) {
+      return;
+    }
+    
+    if(events.size() >= limit) {
+      truncated = true;
+      recording = false;
+      return;
+    }
+    
+    events.add(new Event(clock.getAsLong() - start, kind, new ArrayList<>(fields)));
+  }
+  
+  synchronized int size() {
+    return events.size();
+  }
+  
+  synchronized boolean isTruncated() {
+    return truncated;
+  }
+  
+  /** @return the lines of the trace */
+  synchronized List<String> format() {
+    List<String> lines = new ArrayList<>(events.size() + 2);
+    lines.add(HEADER);
+    
+    for(Event e : events) {
+      StringBuilder b = new StringBuilder();
+      b.append(e.time).append('\t').append(e.kind);
+      
+      for(String field : e.fields) {
+        b.append('\t').append(escape(field));
+      }
+      
+      lines.add(b.toString());
+    }
+    
+    if(truncated) {
+      lines.add("# truncated after "+limit+" events");
+    }
+    
+    return lines;
+  }
+  
+  /**
+   * @param lines lines of a trace as written by {@link #format()}
+   * @return the events of the trace
+   * @throws IllegalArgumentException if a line is not an event
+   */
+  static List<Event> parse(List<String> lines) {
+    List<Event> parsed = new ArrayList<>(lines.size());
+    
+    for(String line : lines) {
+      if(line.isBlank() || line.startsWith("#")) {
+        continue;
+      }
+      
+      String[] fields = line.split("\t", -1);
+      
+      if(fields.length < 2) {
+        throw new IllegalArgumentException("not an event: "+line);
+      }
+      
+      List<String> values = new ArrayList<>(fields.length - 2);
+      
+      for(int i = 2; i < fields.length; i++) {
+        values.add(unescape(fields[i]));
+      }
+      
+      try {
+        parsed.add(new Event(Long.parseLong(fields[0]), fields[1], values));
+      }
+      catch(NumberFormatException e) {
+        throw new IllegalArgumentException("not an event: "+line, e);
+      }
+    }
+    
+    return parsed;
+  }
+  
+  private static String escape(String s) {
+    if(s == null) {
+      return "";
+    }
+    
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+  }
+  
+  private static String unescape(String s) {
+    if(s.indexOf('\\') < 0) {
+      return s;
+    }
+    
+    StringBuilder b = new StringBuilder(s.length());
+    
+    for(int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      
+      if(c == '\\' && i + 1 < s.length()) {
+        char next = s.charAt(++i);
+        b.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      }
+      else {
+        b.append(c);
+      }
+    }
+    
+    return b.toString();
+  }
+  
+  /** An event with the milliseconds since the start of the trace. */
+  static final class Event {
+    final long time;
+    final String kind;
+    final List<String> fields;
+    
+    Event(long time, String kind, List<String> fields) {
+      this.time = time;
+      this.kind = kind;
+      this.fields = fields;
+    }
+    
+    /** @return the field at the given index, {@code null} if there is none */
+    String get(int i) {
+      return i < fields.size() ? fields.get(i) : null;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.GrayFilter;
+import javax.swing.Icon;
+import javax.swing.JComponent;
+import javax.swing.UIManager;
+
+/**
+ * Enabled and disabled variants of the icons of category buttons and items, keyed by
+ * toolbar id.
+ * <p>
+ * Each variant is painted into an image at the scale of the screen the first time it is
+ * shown, so enabling and disabling a button only swaps images instead of filtering the icon
+ * again, and items that are never shown are never painted. An entry is painted again if the
+ * icon of its toolbar id is replaced, all entries are painted again if the scale changes.
+ */
+final class IconCache {
+  private static final GrayFilter DISABLED = new GrayFilter(true, 50);
+  
+  private final Map<String, Icons> icons;
+  private double scale;
+  
+  IconCache() {
+    icons = new HashMap<>();
+    scale = 1;
+  }
+  
+  /**
+   * @param id toolbar id, without id nothing is cached
+   * @param icon the icon as shown by the toolbar button or item
+   * @param disabled the disabled icon to use, {@code null} to derive it from the icon
+   * @return the cached variants, {@code null} if there is no id or icon
+   */
+  Icons get(String id, Icon icon, Icon disabled) {
+    if(id == null || icon == null || icon.getIconWidth() <= 0 || icon.getIconHeight() <= 0) {
+      return null;
+    }
+    
+    double current = getScreenScale();
+    
+    if(current != scale) {
+      icons.clear();
+      scale = current;
+    }
+    
+    Icons cached = icons.get(id);
+    
+    if(cached == null || cached.source != icon) {
+      cached = new Icons(icon, disabled, scale);
+      icons.put(id, cached);
+    }
+    
+    return cached;
+  }
+  
+  void remove(String id) {
+    icons.remove(id);
+  }
+  
+  void clear() {
+    icons.clear();
+  }
+  
+  int size() {
+    return icons.size();
+  }
+  
+  private static BufferedImage render(Icon icon, double scale) {
+    BufferedImage image = new BufferedImage((int)Math.ceil(icon.getIconWidth() * scale), (int)Math.ceil(icon.getIconHeight() * scale), BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = image.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.scale(scale, scale);
+    icon.paintIcon(null, g, 0, 0);
+    g.dispose();
+    
+    return image;
+  }
+  
+  /** @return the image filtered the same way as Swing filters disabled icons */
+  private static BufferedImage gray(BufferedImage image) {
+    BufferedImage gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    int[] rgb = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    
+    for(int i = 0; i < rgb.length; i++) {
+      rgb[i] = DISABLED.filterRGB(0, 0, rgb[i]);
+    }
+    
+    gray.setRGB(0, 0, image.getWidth(), image.getHeight(), rgb, 0, image.getWidth());
+    
+    return gray;
+  }
+  
+  private static double getScreenScale() {
+    if(GraphicsEnvironment.isHeadless()) {
+      return 1;
+    }
+    
+    return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration().getDefaultTransform().getScaleX();
+  }
+  
+  /** The variants of one icon, each is painted into an image when it is shown for the first time. */
+  static final class Icons {
+    private final Icon source;
+    /** disabled icon to paint, {@code null} to derive it from the enabled image */
+    private final Icon disabledSource;
+    private final double scale;
+    private BufferedImage enabledImage;
+    private BufferedImage disabledImage;
+    /** the icon can only be painted on its own component, it is painted directly */
+    private boolean unrenderable;
+    final Icon enabled;
+    final Icon disabled;
+    
+    private Icons(Icon source, Icon disabledSource, double scale) {
+      this.source = source;
+      this.disabledSource = disabledSource;
+      this.scale = scale;
+      enabled = new ScaledIcon(this, false);
+      disabled = new ScaledIcon(this, true);
+    }
+    
+    /** @return the image of the variant, {@code null} if the icon cannot be painted into an image */
+    private BufferedImage getImage(boolean isDisabled) {
+      if(unrenderable) {
+        return null;
+      }
+      
+      try {
+        if(enabledImage == null && (!isDisabled || disabledSource == null)) {
+          enabledImage = render(source, scale);
+        }
+        
+        if(isDisabled && disabledImage == null) {
+          disabledImage = disabledSource != null ? render(disabledSource, scale) : gray(enabledImage);
+        }
+      }
+      catch(RuntimeException e) {
+        unrenderable = true;
+        return null;
+      }
+      
+      return isDisabled ? disabledImage : enabledImage;
+    }
+    
+    /** Paints the variant the way Swing does without cache. */
+    private void paintDirectly(boolean isDisabled, Component c, Graphics g, int x, int y) {
+      Icon icon = source;
+      
+      if(isDisabled) {
+        icon = disabledSource != null ? disabledSource : c instanceof JComponent ? UIManager.getLookAndFeel().getDisabledIcon((JComponent)c, source) : null;
+      }
+      
+      if(icon != null) {
+        icon.paintIcon(c, g, x, y);
+      }
+    }
+  }
+  
+  /** Paints a variant rendered at the screen scale in the size of the icon it was rendered from. */
+  private static final class ScaledIcon implements Icon {
+    private final Icons icons;
+    private final boolean isDisabled;
+    
+    private ScaledIcon(Icons icons, boolean isDisabled) {
+      this.icons = icons;
+      this.isDisabled = isDisabled;
+    }
+    
+    @Override
+    public void paintIcon(Component c, Graphics g, int x, int y) {
+      BufferedImage image = icons.getImage(isDisabled);
+      
+      if(image != null) {
+        g.drawImage(image, x, y, getIconWidth(), getIconHeight(), null);
+      }
+      else {
+        icons.paintDirectly(isDisabled, c, g, x, y);
+      }
+    }
+    
+    @Override
+    public int getIconWidth() {
+      return isDisabled && icons.disabledSource != null ? icons.disabledSource.getIconWidth() : icons.source.getIconWidth();
+    }
+    
+    @Override
+    public int getIconHeight() {
+      return isDisabled && icons.disabledSource != null ? icons.disabledSource.getIconHeight() : icons.source.getIconHeight();
+    }
+  }
+}
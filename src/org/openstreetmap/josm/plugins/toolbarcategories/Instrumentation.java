@@ -0,0 +1,114 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Call counts and timings of the hot paths of the plugin.
+ * <p>
+ * While disabled {@link #start()} returns {@code 0} and nothing is recorded, so an
+ * instrumented call costs a single field read. Timings may be recorded from any
+ * thread, the preferences are for example also written by the shutdown hook.
+ */
+final class Instrumentation {
+  static final String LOAD = "load";
+  static final String RECONCILE = "reconcile";
+  static final String UPDATE_MENU = "updateMenu";
+  static final String ENABLED_STATE = "updateEnabledState";
+  static final String SAVE = "save";
+  static final String WRITE = "write";
+  static final String COMPONENT_ADDED = "componentAdded";
+  static final String PRESETS = "resyncPresets";
+  
+  private final Map<String, Timing> timings;
+  private volatile boolean enabled;
+  private long since;
+  
+  Instrumentation() {
+    timings = new LinkedHashMap<>();
+    
+    for(String name : new String[] {LOAD, RECONCILE, UPDATE_MENU, ENABLED_STATE, SAVE, WRITE, COMPONENT_ADDED}) {
+      timings.put(name, new Timing());
+    }
+  }
+  
+  boolean isEnabled() {
+    return enabled;
+  }
+  
+  synchronized void setEnabled(boolean enabled) {
+    if(enabled && !this.enabled) {
+      since = System.currentTimeMillis();
+    }
+    
+    this.enabled = enabled;
+  }
+  
+  /** @return the start time to pass to {@link #stop(String, long)}, {@code 0} if disabled */
+  long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+  
+  /** Records a call of the given hot path that began at {@code start}. */
+  void stop(String name, long start) {
+    if(start != 0) {
+      record(name, System.nanoTime() - start);
+    }
+  }
+  
+  /** Records a call without timing it. */
+  void count(String name) {
+    if(enabled) {
+      record(name, -1);
+    }
+  }
+  
+  private synchronized void record(String name, long nanos) {
+    Timing t = timings.computeIfAbsent(name, k -> new Timing());
+    t.count++;
+    
+    if(nanos >= 0) {
+      t.total += nanos;
+      t.max = Math.max(t.max, nanos);
+    }
+  }
+  
+  /** @return the number of recorded calls of the given hot path */
+  synchronized long getCount(String name) {
+    Timing t = timings.get(name);
+    return t != null ? t.count : 0;
+  }
+  
+  synchronized void reset() {
+    timings.values().forEach(Timing::reset);
+    since = System.currentTimeMillis();
+  }
+  
+  /** Appends one line per hot path with count, total, average and maximum time in milliseconds. */
+  synchronized void appendTo(StringBuilder b) {
+    b.append(String.format("%-20s %8s %10s %8s %8s%n", "", "count", "total ms", "avg ms", "max ms"));
+    
+    for(Map.Entry<String, Timing> e : timings.entrySet()) {
+      Timing t = e.getValue();
+      
+      b.append(String.format("%-20s %8d %10.1f %8.3f %8.3f%n", e.getKey(), t.count, t.total / 1e6,
+          t.count > 0 ? t.total / 1e6 / t.count : 0, t.max / 1e6));
+    }
+    
+    if(enabled) {
+      b.append(String.format("recording for %d s%n", (System.currentTimeMillis() - since) / 1000));
+    }
+  }
+  
+  private static final class Timing {
+    private long count;
+    private long total;
+    private long max;
+    
+    private void reset() {
+      count = 0;
+      total = 0;
+      max = 0;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Write-behind storage of the category layout.
+ * <p>
+ * Edits serialize the layout on the EDT, it is written once the edits have been quiet
+ * for the configured period, on {@link #flush()} or when the plugin is unloaded. Writes
+ * of a layout equal to the one last written are skipped. On shutdown the last serialized
+ * layout is written by {@link #writeUnwritten()} without touching the categories.
+ */
+final class LayoutPersister {
+  private final String keyNames;
+  private final String keyItems;
+  private final CoalescingScheduler scheduler;
+  private final String kind;
+  private final BiConsumer<List<String>, List<List<String>>> serializer;
+  private final Instrumentation stats;
+  
+  private List<String> names;
+  private List<List<String>> items;
+  /** the layout serialized by the last edit, {@code null} if it was written */
+  private volatile Layout unwritten;
+  
+  private int writes;
+  private int skipped;
+  
+  LayoutPersister(String keyNames, String keyItems, CoalescingScheduler scheduler, String kind, BiConsumer<List<String>, List<List<String>>> serializer, Instrumentation stats) {
+    this.keyNames = keyNames;
+    this.keyItems = keyItems;
+    this.scheduler = scheduler;
+    this.kind = kind;
+    this.serializer = serializer;
+    this.stats = stats;
+    
+    names = Collections.emptyList();
+    items = Collections.emptyList();
+  }
+  
+  /** Reads the layout from the preferences, dropping unwritten changes. */
+  void read() {
+    use(fetch());
+  }
+  
+  /**
+   * Reads the layout from the preferences without making it the current one.
+   * Does not touch the state of the persister and may be called from any thread.
+   */
+  Layout fetch() {
+    return new Layout(Config.getPref().getList(keyNames, Collections.emptyList()), Config.getPref().getListOfLists(keyItems));
+  }
+  
+  /** Makes a layout previously returned by {@link #fetch()} the current one, dropping unwritten changes. */
+  void use(Layout layout) {
+    discard();
+    names = layout.names;
+    items = layout.items;
+  }
+  
+  /** Serializes the layout of the categories, it is written after the quiet period. */
+  void markDirty() {
+    List<String> newNames = new ArrayList<>();
+    List<List<String>> newItems = new ArrayList<>();
+    serializer.accept(newNames, newItems);
+    unwritten = new Layout(newNames, newItems);
+    scheduler.schedule(kind, this::flush);
+  }
+  
+  boolean isDirty() {
+    return unwritten != null;
+  }
+  
+  void discard() {
+    unwritten = null;
+    scheduler.cancel(kind);
+  }
+  
+  void flush() {
+    Layout layout = unwritten;
+    
+    if(layout == null) {
+      return;
+    }
+    
+    discard();
+    
+    long start = stats.start();
+    
+    if(layout.names.equals(names) && layout.items.equals(items)) {
+      skipped++;
+    }
+    else {
+      names = layout.names;
+      items = layout.items;
+      Config.getPref().putList(keyNames, names);
+      Config.getPref().putListOfLists(keyItems, items);
+      writes++;
+    }
+    
+    stats.stop(Instrumentation.WRITE, start);
+  }
+  
+  /** Makes the given layout the current one and writes it, dropping unwritten changes. */
+  void write(Layout layout) {
+    discard();
+    names = layout.names;
+    items = layout.items;
+    Config.getPref().putList(keyNames, names);
+    Config.getPref().putListOfLists(keyItems, items);
+    writes++;
+  }
+  
+  /** Writes the layout serialized by the last edit if it was not written yet, may be called from any thread. */
+  void writeUnwritten() {
+    Layout layout = unwritten;
+    
+    if(layout != null) {
+      Config.getPref().putList(keyNames, layout.names);
+      Config.getPref().putListOfLists(keyItems, layout.items);
+    }
+  }
+  
+  /** @return {@code true} if the preferences still hold the layout last read or written */
+  boolean matchesPreferences() {
+    return Objects.equals(names, Config.getPref().getList(keyNames, Collections.emptyList()))
+        && Objects.equals(items, Config.getPref().getListOfLists(keyItems));
+  }
+  
+  /** @return names of the categories as last read or written */
+  List<String> getNames() {
+    return names;
+  }
+  
+  /** @return items of the categories as last read or written */
+  List<List<String>> getItems() {
+    return items;
+  }
+  
+  int getWrites() {
+    return writes;
+  }
+  
+  int getSkipped() {
+    return skipped;
+  }
+  
+  /** Names and items of the categories as stored in the preferences. */
+  static final class Layout {
+    private final List<String> names;
+    private final List<List<String>> items;
+    
+    Layout(List<String> names, List<List<String>> items) {
+      this.names = names;
+      this.items = items;
+    }
+    
+    List<String> getNames() {
+      return names;
+    }
+    
+    List<List<String>> getItems() {
+      return items;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.josm.plugins.toolbarcategories.LayoutPersister.Layout;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Named layouts the categories can be switched between.
+ * <p>
+ * The layout of the active profile is the one of the {@link LayoutPersister}. Each inactive
+ * profile is stored as a list of lists under its own key, the first list holds the names
+ * of the categories and each following list the items of one category. The inactive
+ * layouts are read once and kept in memory, so switching does not read the preferences.
+ * The profile named {@code ""} is the default profile that exists before any profile was
+ * created.
+ */
+final class LayoutProfiles {
+  static final String DEFAULT = "";
+  
+  private final String keyNames;
+  private final String keyActive;
+  private final String keyPrefix;
+  
+  /** inactive profile -> layout, {@code null} until read */
+  private Map<String, Layout> inactive;
+  private List<String> names;
+  private String active;
+  private int modCount;
+  
+  LayoutProfiles(String keyNames, String keyActive, String keyPrefix) {
+    this.keyNames = keyNames;
+    this.keyActive = keyActive;
+    this.keyPrefix = keyPrefix;
+  }
+  
+  private void read() {
+    if(inactive == null) {
+      names = new ArrayList<>(Config.getPref().getList(keyNames, Collections.emptyList()));
+      inactive = new LinkedHashMap<>();
+      
+      if(!names.contains(getActive())) {
+        names.add(0, getActive());
+      }
+      
+      for(String name : names) {
+        if(!name.equals(getActive())) {
+          List<List<String>> rows = Config.getPref().getListOfLists(keyPrefix+name);
+          inactive.put(name, rows.isEmpty() ? new Layout(Collections.emptyList(), Collections.emptyList()) : new Layout(rows.get(0), rows.subList(1, rows.size())));
+        }
+      }
+    }
+  }
+  
+  /** @return names of all profiles, the active one included */
+  List<String> getNames() {
+    read();
+    return Collections.unmodifiableList(names);
+  }
+  
+  /** @return the name of the active profile, the inactive profiles are not read for it */
+  String getActive() {
+    if(active == null) {
+      active = Config.getPref().get(keyActive, DEFAULT);
+    }
+    
+    return active;
+  }
+  
+  boolean contains(String name) {
+    read();
+    return names.contains(name);
+  }
+  
+  /** @return a counter increased on every change of the profiles */
+  int getModCount() {
+    return modCount;
+  }
+  
+  /**
+   * Makes the given profile the active one.
+   * @param current the layout of the profile active so far, it is stored as inactive profile
+   * @return the layout of the given profile
+   */
+  Layout activate(String name, Layout current) {
+    read();
+    Layout layout = inactive.remove(name);
+    
+    if(layout == null) {
+      throw new IllegalArgumentException("No inactive profile: "+name);
+    }
+    
+    store(active, current);
+    Config.getPref().putListOfLists(keyPrefix+name, null);
+    active = name;
+    Config.getPref().put(keyActive, active);
+    modCount++;
+    
+    return layout;
+  }
+  
+  /** Adds an inactive profile with the given layout. */
+  void add(String name, Layout layout) {
+    read();
+    
+    if(names.contains(name)) {
+      throw new IllegalArgumentException("Profile exists already: "+name);
+    }
+    
+    names.add(name);
+    store(name, layout);
+    Config.getPref().putList(keyNames, names);
+    modCount++;
+  }
+  
+  /** Removes an inactive profile. */
+  void remove(String name) {
+    read();
+    
+    if(inactive.remove(name) != null) {
+      names.remove(name);
+      Config.getPref().putListOfLists(keyPrefix+name, null);
+      Config.getPref().putList(keyNames, names);
+      modCount++;
+    }
+  }
+  
+  private void store(String name, Layout layout) {
+    List<List<String>> rows = new ArrayList<>(layout.getItems().size() + 1);
+    rows.add(layout.getNames());
+    rows.addAll(layout.getItems());
+    
+    inactive.put(name, layout);
+    Config.getPref().putListOfLists(keyPrefix+name, rows);
+  }
+}
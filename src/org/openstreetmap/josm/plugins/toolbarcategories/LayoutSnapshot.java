@@ -0,0 +1,179 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.awt.Component;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.JButton;
+import javax.swing.JToolBar;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * The layout as it was resolved against the toolbar, stored as the positions of the
+ * categorized buttons on the toolbar before they were moved into their categories.
+ * <p>
+ * The snapshot is only valid for the toolbar content and the layout it was resolved
+ * for, both are identified by a hash. It is stored as a list of lists, the first list
+ * holds the version and the two hashes, each following list the name of a category and
+ * the toolbar positions of its items, {@link #SEPARATOR} for a separator and the entry
+ * of the category for a nested category.
+ */
+final class LayoutSnapshot {
+  static final String VERSION = "2";
+  static final String SEPARATOR = "-";
+  
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  
+  private final String key;
+  
+  LayoutSnapshot(String key) {
+    this.key = key;
+  }
+  
+  /**
+   * Reads the snapshot and looks up its buttons.
+   * @return the categories with their buttons, or {@code null} if there is no snapshot for
+   *         the given hashes or it does not fit the toolbar
+   */
+  List<Resolved> read(long toolbarHash, long layoutHash, JToolBar toolbar) {
+    List<List<String>> rows = Config.getPref().getListOfLists(key);
+    
+    if(rows.isEmpty() || !rows.get(0).equals(header(toolbarHash, layoutHash))) {
+      return null;
+    }
+    
+    List<Resolved> resolved = new ArrayList<>(rows.size() - 1);
+    Set<Component> used = Collections.newSetFromMap(new IdentityHashMap<>());
+    
+    try {
+      for(List<String> row : rows.subList(1, rows.size())) {
+        List<JButton> entries = new ArrayList<>(row.size() - 1);
+        List<String> subcategories = new ArrayList<>(row.size() - 1);
+        
+        for(String position : row.subList(1, row.size())) {
+          subcategories.add(Category.isSubcategory(position) ? Category.getSubcategoryName(position) : null);
+          
+          if(SEPARATOR.equals(position) || Category.isSubcategory(position)) {
+            entries.add(null);
+          }
+          else {
+            Component c = toolbar.getComponent(Integer.parseInt(position));
+            
+            if(!(c instanceof JButton) || !used.add(c)) {
+              return null;
+            }
+            
+            entries.add((JButton)c);
+          }
+        }
+        
+        resolved.add(new Resolved(row.get(0), entries, subcategories));
+      }
+    }
+    catch(IndexOutOfBoundsException | NumberFormatException e) {
+      return null;
+    }
+    
+    return resolved;
+  }
+  
+  /** Stores the resolved layout, must be called before any button was moved off the toolbar. */
+  void write(long toolbarHash, long layoutHash, List<Resolved> resolved, JToolBar toolbar) {
+    Map<Component, Integer> positions = new IdentityHashMap<>();
+    
+    for(int i = 0; i < toolbar.getComponentCount(); i++) {
+      positions.put(toolbar.getComponent(i), i);
+    }
+    
+    List<List<String>> rows = new ArrayList<>(resolved.size() + 1);
+    rows.add(header(toolbarHash, layoutHash));
+    
+    for(Resolved r : resolved) {
+      List<String> row = new ArrayList<>(r.entries.size() + 1);
+      row.add(r.name);
+      
+      for(int i = 0; i < r.entries.size(); i++) {
+        if(r.subcategories.get(i) != null) {
+          row.add(Category.subcategory(r.subcategories.get(i)));
+        }
+        else {
+          row.add(r.entries.get(i) == null ? SEPARATOR : String.valueOf(positions.get(r.entries.get(i))));
+        }
+      }
+      
+      rows.add(row);
+    }
+    
+    Config.getPref().putListOfLists(key, rows);
+  }
+  
+  private static List<String> header(long toolbarHash, long layoutHash) {
+    return List.of(VERSION, Long.toHexString(toolbarHash), Long.toHexString(layoutHash));
+  }
+  
+  /** @return hash of the sequence of toolbar ids on the toolbar, components without id included */
+  static long hash(JToolBar toolbar) {
+    long h = FNV_OFFSET;
+    
+    for(int i = 0; i < toolbar.getComponentCount(); i++) {
+      h = hash(h, ToolbarCategoriesPlugin.getToolbarId(toolbar.getComponent(i)));
+    }
+    
+    return h;
+  }
+  
+  /** @return hash of the given layout */
+  static long hash(List<String> names, List<List<String>> items) {
+    long h = FNV_OFFSET;
+    
+    for(String name : names) {
+      h = hash(h, name);
+    }
+    
+    for(List<String> list : items) {
+      h = hash(h, null);
+      
+      for(String item : list) {
+        h = hash(h, item);
+      }
+    }
+    
+    return h;
+  }
+  
+  /** 64 bit FNV-1a, {@code null} and the end of each string hash as distinct markers */
+  private static long hash(long h, String s) {
+    if(s == null) {
+      return (h ^ 0x1ffff) * FNV_PRIME;
+    }
+    
+    for(int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * FNV_PRIME;
+    }
+    
+    return (h ^ 0x10000) * FNV_PRIME;
+  }
+  
+  /**
+   * A category of the layout with the buttons of its items. For a separator or a nested
+   * category the button is {@code null}, for a nested category the name of the nested
+   * category is set at the same index.
+   */
+  static final class Resolved {
+    final String name;
+    final List<JButton> entries;
+    final List<String> subcategories;
+    
+    Resolved(String name, List<JButton> entries, List<String> subcategories) {
+      this.name = name;
+      this.entries = entries;
+      this.subcategories = subcategories;
+    }
+  }
+}
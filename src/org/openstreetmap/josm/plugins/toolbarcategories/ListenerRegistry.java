@@ -0,0 +1,202 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.event.ContainerListener;
+import java.awt.event.MouseListener;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.Action;
+import javax.swing.JComponent;
+import javax.swing.JPopupMenu;
+import javax.swing.event.PopupMenuListener;
+
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.tagging.presets.TaggingPresetListener;
+import org.openstreetmap.josm.gui.tagging.presets.TaggingPresets;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.PreferenceChangedListener;
+import org.openstreetmap.josm.tools.Shortcut;
+
+/**
+ * Keeps track of every listener and shortcut the plugin registers on objects it does not own,
+ * so they can be released together when the categories are rebuilt, the map frame
+ * changes or the plugin is unloaded.
+ */
+final class ListenerRegistry {
+  enum Scope {
+    /** registrations on category items, category buttons and other toolbar buttons, released on every reload */
+    CATEGORIES,
+    /** registrations that live as long as a map frame */
+    MAP_FRAME,
+    /** registrations that live as long as the plugin */
+    PLUGIN
+  }
+  
+  /** scope -> target -> listener -> action releasing the registration, targets and listeners are compared by identity */
+  private final Map<Scope, Map<Object, Map<Object, Runnable>>> registrations;
+  private int count;
+  
+  ListenerRegistry() {
+    registrations = new EnumMap<>(Scope.class);
+    
+    for(Scope scope : Scope.values()) {
+      registrations.put(scope, new IdentityHashMap<>());
+    }
+  }
+  
+  void addPropertyChangeListener(Scope scope, Component c, String property, PropertyChangeListener l) {
+    if(register(scope, c, l, () -> c.removePropertyChangeListener(property, l))) {
+      c.addPropertyChangeListener(property, l);
+    }
+  }
+  
+  void addPropertyChangeListener(Scope scope, Action a, PropertyChangeListener l) {
+    if(register(scope, a, l, () -> a.removePropertyChangeListener(l))) {
+      a.addPropertyChangeListener(l);
+    }
+  }
+  
+  void addMouseListener(Scope scope, Component c, MouseListener l) {
+    if(register(scope, c, l, () -> c.removeMouseListener(l))) {
+      c.addMouseListener(l);
+    }
+  }
+  
+  void addContainerListener(Scope scope, Container c, ContainerListener l) {
+    if(register(scope, c, l, () -> c.removeContainerListener(l))) {
+      c.addContainerListener(l);
+    }
+  }
+  
+  void addPopupMenuListener(Scope scope, JPopupMenu m, PopupMenuListener l) {
+    if(register(scope, m, l, () -> m.removePopupMenuListener(l))) {
+      m.addPopupMenuListener(l);
+    }
+  }
+  
+  void addKeyPreferenceChangeListener(Scope scope, String key, PreferenceChangedListener l) {
+    if(register(scope, key, l, () -> Config.getPref().removeKeyPreferenceChangeListener(key, l))) {
+      Config.getPref().addKeyPreferenceChangeListener(key, l);
+    }
+  }
+  
+  void addPreferenceChangeListener(Scope scope, PreferenceChangedListener l) {
+    if(register(scope, Config.class, l, () -> Config.getPref().removePreferenceChangeListener(l))) {
+      Config.getPref().addPreferenceChangeListener(l);
+    }
+  }
+  
+  void setComponentPopupMenu(Scope scope, JComponent c, JPopupMenu m) {
+    if(register(scope, c, m, () -> {
+      if(c.getComponentPopupMenu() == m) {
+        c.setComponentPopupMenu(null);
+      }
+    })) {
+      c.setComponentPopupMenu(m);
+    }
+  }
+  
+  void addActionShortcut(Scope scope, Action a, Shortcut shortcut) {
+    if(register(scope, shortcut, a, () -> MainApplication.unregisterActionShortcut(a, shortcut))) {
+      MainApplication.registerActionShortcut(a, shortcut);
+    }
+  }
+  
+  void addTaggingPresetListener(Scope scope, TaggingPresetListener l) {
+    if(register(scope, TaggingPresets.class, l, () -> TaggingPresets.removeListener(l))) {
+      TaggingPresets.addListener(l);
+    }
+  }
+  
+  private boolean register(Scope scope, Object target, Object listener, Runnable remover) {
+    if(isRegistered(target, listener)) {
+      return false;
+    }
+    
+    registrations.get(scope).computeIfAbsent(target, t -> new IdentityHashMap<>(4)).put(listener, remover);
+    count++;
+    
+    return true;
+  }
+  
+  boolean isRegistered(Object target, Object listener) {
+    for(Map<Object, Map<Object, Runnable>> targets : registrations.values()) {
+      Map<Object, Runnable> listeners = targets.get(target);
+      
+      if(listeners != null && listeners.containsKey(listener)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /** Releases the given listener from the given target. */
+  void release(Object target, Object listener) {
+    for(Map<Object, Map<Object, Runnable>> targets : registrations.values()) {
+      Map<Object, Runnable> listeners = targets.get(target);
+      Runnable remover = listeners != null ? listeners.remove(listener) : null;
+      
+      if(remover != null) {
+        if(listeners.isEmpty()) {
+          targets.remove(target);
+        }
+        
+        count--;
+        remover.run();
+      }
+    }
+  }
+  
+  /** Releases all listeners of the given scope from the given target. */
+  void releaseTarget(Scope scope, Object target) {
+    Map<Object, Runnable> listeners = registrations.get(scope).remove(target);
+    
+    if(listeners != null) {
+      count -= listeners.size();
+      listeners.values().forEach(Runnable::run);
+    }
+  }
+  
+  /** Releases all listeners of the given scope. */
+  void release(Scope scope) {
+    Map<Object, Map<Object, Runnable>> targets = registrations.get(scope);
+    List<Runnable> removers = new ArrayList<>();
+    
+    for(Map<Object, Runnable> listeners : targets.values()) {
+      removers.addAll(listeners.values());
+    }
+    
+    targets.clear();
+    count -= removers.size();
+    removers.forEach(Runnable::run);
+  }
+  
+  void releaseAll() {
+    for(Scope scope : Scope.values()) {
+      release(scope);
+    }
+  }
+  
+  /** @return the number of registrations of the given scope currently held, for debugging leaks */
+  int getCount(Scope scope) {
+    int n = 0;
+    
+    for(Map<Object, Runnable> listeners : registrations.get(scope).values()) {
+      n += listeners.size();
+    }
+    
+    return n;
+  }
+  
+  /** @return the number of all registrations currently held */
+  int getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,213 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.swing.Action;
+
+/**
+ * Search index over the actions of all categories, including the presets of nested
+ * preset menus.
+ * <p>
+ * The entries are kept per category together with the modification count they were
+ * collected for, {@link #isCurrent(Category)} tells whether a category has to be collected
+ * again. Each entry is reachable by the prefix of every word of its label, queries
+ * that match no prefix fall back to a fuzzy match of the query characters in order.
+ */
+final class QuickLaunchIndex {
+  private final Map<Category, Indexed> categories;
+  /** lower case label from the start of each word on -> entries */
+  private final TreeMap<String, List<Entry>> words;
+  
+  QuickLaunchIndex() {
+    categories = new IdentityHashMap<>();
+    words = new TreeMap<>();
+  }
+  
+  boolean isCurrent(Category c) {
+    Indexed indexed = categories.get(c);
+    return indexed != null && indexed.modCount == c.getModCount();
+  }
+  
+  /** Replaces the entries of the given category. */
+  void update(Category c, List<Entry> entries) {
+    remove(c);
+    categories.put(c, new Indexed(c.getModCount(), entries));
+    
+    for(Entry e : entries) {
+      for(String word : e.words) {
+        words.computeIfAbsent(word, k -> new ArrayList<>(1)).add(e);
+      }
+    }
+  }
+  
+  void remove(Category c) {
+    Indexed indexed = categories.remove(c);
+    
+    if(indexed != null) {
+      for(Entry e : indexed.entries) {
+        for(String word : e.words) {
+          List<Entry> list = words.get(word);
+          
+          if(list != null && list.remove(e) && list.isEmpty()) {
+            words.remove(word);
+          }
+        }
+      }
+    }
+  }
+  
+  /** Removes all categories not in the given ones. */
+  void retain(Collection<Category> current) {
+    Set<Category> keep = new HashSet<>(current);
+    
+    for(Category c : new ArrayList<>(categories.keySet())) {
+      if(!keep.contains(c)) {
+        remove(c);
+      }
+    }
+  }
+  
+  void clear() {
+    categories.clear();
+    words.clear();
+  }
+  
+  int size() {
+    int n = 0;
+    
+    for(Indexed indexed : categories.values()) {
+      n += indexed.entries.size();
+    }
+    
+    return n;
+  }
+  
+  /**
+   * @return at most {@code limit} entries, those with a word starting with the query first
+   *         ordered by label, then those matching the query characters in order with the
+   *         closest matches first
+   */
+  List<Entry> find(String query, int limit) {
+    String q = query.trim().toLowerCase(Locale.ROOT);
+    Set<Entry> result = new LinkedHashSet<>();
+    
+    if(q.isEmpty()) {
+      return new ArrayList<>();
+    }
+    
+    for(List<Entry> list : words.subMap(q, true, q+Character.MAX_VALUE, true).values()) {
+      result.addAll(list);
+    }
+    
+    List<Entry> prefix = new ArrayList<>(result);
+    prefix.sort(Comparator.comparing(e -> e.key));
+    
+    if(prefix.size() >= limit) {
+      return prefix.subList(0, limit);
+    }
+    
+    List<Scored> fuzzy = new ArrayList<>();
+    
+    for(Indexed indexed : categories.values()) {
+      for(Entry e : indexed.entries) {
+        if(!result.contains(e)) {
+          int score = fuzzyScore(e.key, q);
+          
+          if(score >= 0) {
+            fuzzy.add(new Scored(e, score));
+          }
+        }
+      }
+    }
+    
+    fuzzy.sort(Comparator.<Scored>comparingInt(s -> s.score).thenComparing(s -> s.entry.key));
+    
+    for(int i = 0; i < fuzzy.size() && prefix.size() < limit; i++) {
+      prefix.add(fuzzy.get(i).entry);
+    }
+    
+    return prefix;
+  }
+  
+  /** @return the number of characters skipped to match all characters of the query in order, {@code -1} if they do not match */
+  private static int fuzzyScore(String text, String query) {
+    int skipped = 0;
+    int pos = 0;
+    
+    for(int i = 0; i < query.length(); i++) {
+      int found = text.indexOf(query.charAt(i), pos);
+      
+      if(found < 0) {
+        return -1;
+      }
+      
+      if(i > 0) {
+        skipped += found - pos;
+      }
+      
+      pos = found + 1;
+    }
+    
+    return skipped;
+  }
+  
+  /** An action in a category, the path names the category and the preset menus leading to it. */
+  static final class Entry {
+    final String label;
+    final String path;
+    final Action action;
+    private final String key;
+    private final List<String> words;
+    
+    Entry(String label, String path, Action action) {
+      this.label = label;
+      this.path = path;
+      this.action = action;
+      
+      key = label.toLowerCase(Locale.ROOT);
+      words = new ArrayList<>(2);
+      words.add(key);
+      
+      for(int i = 1; i < key.length(); i++) {
+        if(!Character.isLetterOrDigit(key.charAt(i-1)) && Character.isLetterOrDigit(key.charAt(i))) {
+          words.add(key.substring(i));
+        }
+      }
+    }
+    
+    @Override
+    public String toString() {
+      return label;
+    }
+  }
+  
+  private static final class Indexed {
+    private final int modCount;
+    private final List<Entry> entries;
+    
+    private Indexed(int modCount, List<Entry> entries) {
+      this.modCount = modCount;
+      this.entries = entries;
+    }
+  }
+  
+  private static final class Scored {
+    private final Entry entry;
+    private final int score;
+    
+    private Scored(Entry entry, int score) {
+      this.entry = entry;
+      this.score = score;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.swing.Action;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.Icon;
+import javax.swing.JList;
+import javax.swing.JPopupMenu;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import org.openstreetmap.josm.plugins.toolbarcategories.QuickLaunchIndex.Entry;
+
+/**
+ * Field to search the actions of all categories, the chosen action is performed
+ * as if it was chosen from its category.
+ */
+final class QuickLaunchPopup extends JPopupMenu {
+  private static final int MAX_RESULTS = 30;
+  private static final int VISIBLE_ROWS = 12;
+  
+  private final Supplier<QuickLaunchIndex> index;
+  private final Consumer<Action> launched;
+  private final JTextField query;
+  private final JList<Entry> list;
+  private final DefaultListModel<Entry> results;
+  
+  /**
+   * @param index supplies the index brought up to date with the categories
+   * @param launched called with each action performed from the popup
+   */
+  QuickLaunchPopup(Supplier<QuickLaunchIndex> index, Consumer<Action> launched) {
+    this.index = index;
+    this.launched = launched;
+    
+    results = new DefaultListModel<>();
+    query = new JTextField(30);
+    list = new JList<>(results);
+    list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    list.setVisibleRowCount(VISIBLE_ROWS);
+    list.setFocusable(false);
+    list.setCellRenderer(new DefaultListCellRenderer() {
+      @Override
+      public Component getListCellRendererComponent(JList<?> l, Object value, int i, boolean isSelected, boolean cellHasFocus) {
+        Entry e = (Entry)value;
+        super.getListCellRendererComponent(l, "<html>"+escape(e.label)+" <font color=gray>"+escape(e.path)+"</font></html>", i, isSelected, false);
+        setIcon(e.action.getValue(Action.SMALL_ICON) instanceof Icon ? (Icon)e.action.getValue(Action.SMALL_ICON) : null);
+        setEnabled(e.action.isEnabled());
+        return this;
+      }
+    });
+    
+    query.getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        update();
+      }
+      
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        update();
+      }
+      
+      @Override
+      public void changedUpdate(DocumentEvent e) {}
+    });
+    
+    query.addKeyListener(new KeyAdapter() {
+      @Override
+      public void keyPressed(KeyEvent e) {
+        int selected = list.getSelectedIndex();
+        
+        if(e.getKeyCode() == KeyEvent.VK_DOWN && selected + 1 < results.size()) {
+          list.setSelectedIndex(selected + 1);
+          list.ensureIndexIsVisible(selected + 1);
+          e.consume();
+        }
+        else if(e.getKeyCode() == KeyEvent.VK_UP && selected > 0) {
+          list.setSelectedIndex(selected - 1);
+          list.ensureIndexIsVisible(selected - 1);
+          e.consume();
+        }
+        else if(e.getKeyCode() == KeyEvent.VK_ENTER) {
+          launch(selected);
+          e.consume();
+        }
+        else if(e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+          setVisible(false);
+          e.consume();
+        }
+      }
+    });
+    
+    list.addMouseListener(new MouseAdapter() {
+      @Override
+      public void mouseReleased(MouseEvent e) {
+        if(SwingUtilities.isLeftMouseButton(e)) {
+          launch(list.locationToIndex(e.getPoint()));
+        }
+      }
+    });
+    
+    setLayout(new BorderLayout());
+    add(query, BorderLayout.NORTH);
+    add(new JScrollPane(list, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER), BorderLayout.CENTER);
+  }
+  
+  @Override
+  public void show(Component invoker, int x, int y) {
+    query.setText("");
+    update();
+    pack();
+    super.show(invoker, x, y);
+    query.requestFocusInWindow();
+  }
+  
+  private void update() {
+    results.clear();
+    
+    for(Entry e : index.get().find(query.getText(), MAX_RESULTS)) {
+      results.addElement(e);
+    }
+    
+    for(int i = 0; i < results.size(); i++) {
+      if(results.get(i).action.isEnabled()) {
+        list.setSelectedIndex(i);
+        return;
+      }
+    }
+  }
+  
+  private void launch(int i) {
+    if(i >= 0 && i < results.size() && results.get(i).action.isEnabled()) {
+      Action action = results.get(i).action;
+      setVisible(false);
+      launched.accept(action);
+      action.actionPerformed(new ActionEvent(getInvoker(), ActionEvent.ACTION_PERFORMED, null));
+    }
+  }
+  
+  private static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+}
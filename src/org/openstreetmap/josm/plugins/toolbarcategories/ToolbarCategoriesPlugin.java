@@ -2,212 +2,360 @@ package org.openstreetmap.josm.plugins.toolbarcategories;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.awt.Color;
 import java.awt.Component;
+import java.awt.Font;
 import java.awt.MouseInfo;
 import java.awt.Point;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ContainerAdapter;
 import java.awt.event.ContainerEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeListener;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
 
 import javax.swing.AbstractAction;
+import javax.swing.AbstractButton;
 import javax.swing.Action;
+import javax.swing.BorderFactory;
+import javax.swing.Icon;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
+import javax.swing.JTextArea;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+import javax.swing.border.Border;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.event.PopupMenuEvent;
 import javax.swing.event.PopupMenuListener;
 
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.MapFrame;
 import org.openstreetmap.josm.gui.tagging.presets.TaggingPreset;
+import org.openstreetmap.josm.gui.tagging.presets.TaggingPresetListener;
 import org.openstreetmap.josm.gui.tagging.presets.TaggingPresetMenu;
+import org.openstreetmap.josm.gui.tagging.presets.TaggingPresets;
+import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
+import org.openstreetmap.josm.plugins.toolbarcategories.LayoutPersister.Layout;
+import org.openstreetmap.josm.plugins.toolbarcategories.LayoutSnapshot.Resolved;
+import org.openstreetmap.josm.plugins.toolbarcategories.ListenerRegistry.Scope;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.spi.preferences.PreferenceChangedListener;
+import org.openstreetmap.josm.spi.preferences.StringSetting;
+import org.openstreetmap.josm.tools.Destroyable;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Shortcut;
 
-public class ToolbarCategoriesPlugin extends Plugin {
+public class ToolbarCategoriesPlugin extends Plugin implements Destroyable {
   private static final String KEY_INFO_SHOWN = ToolbarCategoriesPlugin.class.getSimpleName()+".infoShown";
   private static final String KEY_LIST_NAMES = ToolbarCategoriesPlugin.class.getSimpleName()+".namesList";
   private static final String KEY_LIST_ITEMS = ToolbarCategoriesPlugin.class.getSimpleName()+".itemsList";
+  private static final String KEY_SNAPSHOT = ToolbarCategoriesPlugin.class.getSimpleName()+".resolvedLayout";
+  private static final String KEY_PROFILES = ToolbarCategoriesPlugin.class.getSimpleName()+".profiles";
+  private static final String KEY_ACTIVE_PROFILE = ToolbarCategoriesPlugin.class.getSimpleName()+".activeProfile";
+  private static final String KEY_PROFILE_PREFIX = ToolbarCategoriesPlugin.class.getSimpleName()+".profile.";
   
   private static final String KEY_MOUSE_MIDDLE_ENABLED = ToolbarCategoriesPlugin.class.getSimpleName()+".middleMouseButtonForOtherToolbarActions";
+  private static final String KEY_QUIET_PERIOD_PREFIX = ToolbarCategoriesPlugin.class.getSimpleName()+".quietPeriod.";
+  private static final String KEY_DIAGNOSTICS = ToolbarCategoriesPlugin.class.getSimpleName()+".diagnostics";
+  private static final String KEY_CHECK_EDT = ToolbarCategoriesPlugin.class.getSimpleName()+".checkEdt";
+  private static final String KEY_TRACE = ToolbarCategoriesPlugin.class.getSimpleName()+".trace";
+  /** toolbar configuration of JOSM */
+  private static final String KEY_TOOLBAR = "toolbar";
+  private static final int TRACE_LIMIT = 20000;
+  private static final String KEY_DEFERRED_RESTORE = ToolbarCategoriesPlugin.class.getSimpleName()+".deferredRestore";
+  private static final String KEY_LIST_POPUP_SIZE = ToolbarCategoriesPlugin.class.getSimpleName()+".listPopupSize";
+  private static final String KEY_USAGE = ToolbarCategoriesPlugin.class.getSimpleName()+".usage";
+  private static final String KEY_ADAPTIVE_ORDER = ToolbarCategoriesPlugin.class.getSimpleName()+".adaptiveOrder";
   
-  private static final String SEPARATOR = "-S-E-P-A-R-A-T-O-R-";
-    
-  private final List<JPopupMenu> menus;
-  private final List<String> menuNames;
-  private final List<JButton> toolbarButtons;
+  static final String EVENT_COMPONENT_ADDED = "componentAdded";
+  static final String EVENT_SAVE = "save";
+  static final String EVENT_INFO = "info";
+  static final String EVENT_RESTORE = "restore";
+  static final String EVENT_PRESETS = "presets";
+  static final String EVENT_USAGE = "usage";
+  
+  private final ToolbarHost host;
+  private final CategoryModel model;
+  private final Instrumentation stats;
+  private final EventTrace trace;
+  
+  /** toolbar id -> buttons on the toolbar carrying that id, kept current by {@link #containerAdapter} */
+  private final Map<String, List<JButton>> toolbarIndex;
+  /** the index was not built after the categories were restored from the snapshot, it is built on first use */
+  private boolean toolbarIndexStale;
+  
+  private final LayoutPersister persister;
+  private final LayoutProfiles profiles;
+  /** snapshot of the active profile */
+  private LayoutSnapshot snapshot;
+  private final Thread shutdownHook;
   
   private final JMenu categoryAddTo;
+  private final JMenu profileMenu;
+  private int profileMenuModCount;
   private final JMenuItem categoryCreate;
+  private final Map<Category, JMenu> categoryAddToMenus;
+  private int categoryAddToModCount;
   
   private JButton componentCurrent;
   private Component separator;
   
+  /** buttons selected to be moved into a category together -> their border before they were selected */
+  private final Map<JButton, Border> selection;
+  private final JCheckBoxMenuItem selectionToggle;
+  
   private final JPopupMenu categoryMenu;
+  private final ManagementMenu managementMenu;
   private final ContainerAdapter containerAdapter;
   private final MouseAdapter buttonsAdapter;
   
-  private Thread wait;
+  private final CoalescingScheduler scheduler;
   private long lastAdded;
   
-  private Thread waitEnabled;
-  private long lastEnabledUpdate;
-  
   private boolean isLoading;
   private boolean wasLoaded;
+  /** the categories are restored as soon as the layout was read in the background and the toolbar is idle */
+  private boolean isRestoreDeferred;
+  /** layout read in the background that waits for the toolbar to become idle, {@code null} if not read yet */
+  private Layout pendingRestore;
   private boolean middleMouseButtonForOtherToolbarActions;
   
   private final PreferenceChangedListener prefListener;
+  private final PreferenceChangedListener tracePrefListener;
+  private final TaggingPresetListener presetListener;
   
   private final PropertyChangeListener enabledListener;
+  private final ListenerRegistry listeners;
+  
+  private final Map<Category, EnabledCounter> enabledCounters;
+  
+  /** action fired by the middle mouse button on a category button, with the modification count of the category it was resolved for */
+  private final Map<Category, PrimaryAction> primaryActions;
+  /** modification counts of the categories and of the usage counters the items were last ordered by usage for */
+  private final Map<Category, Arranged> arranged;
+  /** entries of the categories ordered by usage in the order they had before */
+  private final Map<Category, List<String>> manualOrders;
+  private final UsageCounters usage;
+  private final ActionListener usageListener;
+  /**
+   * action fired by the middle mouse button on the toolbar button of a preset menu, weakly
+   * referenced as it may be the menu itself or one of its presets referencing it
+   */
+  private final Map<Action, WeakReference<Action>> presetPrimaryActions;
+  /** items and parked actions -> counter of the category they are in */
+  private final Map<Object, EnabledCounter> itemCounters;
+  
+  private final IconCache buttonIcons;
+  private final IconCache itemIcons;
+  
+  /** submenus of the nested categories in the menus of their parents */
+  private final Map<Category, JMenu> subcategoryMenus;
+  /** toolbar id -> action of a nested category whose menu was not opened yet */
+  private final Map<String, Action> parked;
+  
+  private final QuickLaunchIndex quickLaunchIndex;
+  private final Action quickLaunchAction;
+  private Shortcut quickLaunchShortcut;
+  private QuickLaunchPopup quickLaunch;
   
   public ToolbarCategoriesPlugin(PluginInformation info) {
+    this(info, ToolbarHost.JOSM);
+  }
+  
+  ToolbarCategoriesPlugin(PluginInformation info, ToolbarHost host) {
     super(info);
 
-    menus = new LinkedList<>();
-    menuNames = new LinkedList<>();
-    toolbarButtons = new LinkedList<>();
+    this.host = host;
+    model = new CategoryModel();
+    listeners = new ListenerRegistry();
+    toolbarIndex = new HashMap<>();
+    enabledCounters = new HashMap<>();
+    itemCounters = new HashMap<>();
+    primaryActions = new HashMap<>();
+    arranged = new HashMap<>();
+    manualOrders = new HashMap<>();
+    presetPrimaryActions = new WeakHashMap<>();
+    quickLaunchIndex = new QuickLaunchIndex();
+    subcategoryMenus = new HashMap<>();
+    parked = new HashMap<>();
+    buttonIcons = new IconCache();
+    itemIcons = new IconCache();
+    
+    stats = new Instrumentation();
+    stats.setEnabled(Config.getPref().getBoolean(KEY_DIAGNOSTICS, false));
+    EdtConfinement.setEnabled(Config.getPref().getBoolean(KEY_CHECK_EDT, false));
+    
+    scheduler = new CoalescingScheduler();
+    scheduler.setQuietPeriod(EVENT_COMPONENT_ADDED, Config.getPref().getInt(KEY_QUIET_PERIOD_PREFIX+EVENT_COMPONENT_ADDED, 200));
+    scheduler.setQuietPeriod(EVENT_SAVE, Config.getPref().getInt(KEY_QUIET_PERIOD_PREFIX+EVENT_SAVE, 1000));
+    scheduler.setQuietPeriod(EVENT_INFO, 1000);
+    scheduler.setQuietPeriod(EVENT_RESTORE, Config.getPref().getInt(KEY_QUIET_PERIOD_PREFIX+EVENT_RESTORE, 500));
+    scheduler.setQuietPeriod(EVENT_PRESETS, Config.getPref().getInt(KEY_QUIET_PERIOD_PREFIX+EVENT_PRESETS, 200));
+    scheduler.setQuietPeriod(EVENT_USAGE, Config.getPref().getInt(KEY_QUIET_PERIOD_PREFIX+EVENT_USAGE, 60000));
+    trace = new EventTrace(scheduler::now, TRACE_LIMIT);
+    
+    persister = new LayoutPersister(KEY_LIST_NAMES, KEY_LIST_ITEMS, scheduler, EVENT_SAVE, this::serializeLayout, stats);
+    profiles = new LayoutProfiles(KEY_PROFILES, KEY_ACTIVE_PROFILE, KEY_PROFILE_PREFIX);
+    snapshot = new LayoutSnapshot(getSnapshotKey(profiles.getActive()));
+    usage = new UsageCounters(KEY_USAGE, scheduler, EVENT_USAGE);
+    usageListener = e -> usage.record(getToolbarId((Component)e.getSource()));
+    shutdownHook = new Thread(() -> {
+      persister.writeUnwritten();
+      usage.flush();
+    }, getClass().getSimpleName()+"-flush");
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
     
     middleMouseButtonForOtherToolbarActions = Config.getPref().getBoolean(KEY_MOUSE_MIDDLE_ENABLED, true);
     
-    prefListener = e -> {
+    prefListener = e -> GuiHelper.runInEDT(() -> {
       boolean oldValue = middleMouseButtonForOtherToolbarActions;
       middleMouseButtonForOtherToolbarActions = Config.getPref().getBoolean(KEY_MOUSE_MIDDLE_ENABLED, true);
       updateMiddleMouseButtonForOtherToolbarActions(oldValue);
+    });
+    
+    presetListener = () -> GuiHelper.runInEDT(() -> scheduler.schedule(EVENT_PRESETS, this::resyncPresets));
+    
+    tracePrefListener = e -> {
+      if(e.getKey().startsWith(ToolbarCategoriesPlugin.class.getSimpleName()+".") || KEY_TOOLBAR.equals(e.getKey())) {
+        if(e.getNewValue() instanceof StringSetting) {
+          trace.record(EventTrace.PREFERENCE, e.getKey(), ((StringSetting)e.getNewValue()).getValue());
+        }
+        else {
+          trace.record(EventTrace.PREFERENCE, e.getKey());
+        }
+      }
     };
     
     categoryAddTo = new JMenu(tr("Add to toolbar category"));
     categoryAddTo.setEnabled(false);
+    categoryAddToMenus = new HashMap<>();
+    categoryAddToModCount = -1;
     categoryCreate = new JMenuItem(tr("Create category"));
     categoryCreate.addActionListener(e -> {
       String name = JOptionPane.showInputDialog(MainApplication.getMainFrame(), tr("Please enter name of category"), tr("Name of category?"), JOptionPane.PLAIN_MESSAGE);
       
       if(name != null && !name.isBlank()) {
-        for(int i = 0; i < menuNames.size(); i++) {
-          if(Objects.equals(menuNames.get(i), name)) {
-            addToCategory(menus.get(i), true, true, -1);
-            return;
-          }
-        }
-        
-        lastAdded = System.currentTimeMillis()+2000;
-        menuNames.add(name);
-        menus.add(createPopupMenu(new JPopupMenu(), name, false));
-        save();
+        createCategory(componentCurrent, name);
       }
     });
     
     categoryAddTo.add(categoryCreate);
     
-    final JMenu addSeparatorAction = new JMenu(tr("Add separator above"));
-    addSeparatorAction.setEnabled(false);
+    profileMenu = new JMenu(tr("Toolbar category profile"));
+    profileMenu.setEnabled(false);
+    profileMenuModCount = -1;
+    
+    selection = new LinkedHashMap<>();
+    selectionToggle = new JCheckBoxMenuItem(tr("Select to move into category"));
+    selectionToggle.addActionListener(e -> {
+      if(componentCurrent != null) {
+        setSelected(componentCurrent, selectionToggle.isSelected());
+      }
+    });
     
-    final JMenu removeAction = new JMenu(tr("Remove element"));
-    removeAction.setEnabled(false);
+    managementMenu = new ManagementMenu();
     
     categoryMenu = new JPopupMenu();
     categoryMenu.addPopupMenuListener(new PopupMenuListener() {
       @Override
       public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
-        if(categoryMenu.getInvoker() instanceof JButton) {
-          int index = menuNames.indexOf(((JButton)categoryMenu.getInvoker()).getAction().getValue(Action.NAME));
-          
-          if(index >= 0) {
-            JPopupMenu m = menus.get(index);
-            
-            for(int i = 1; i < m.getComponentCount(); i++) {
-              final int n = i;
-              
-              if(m.getComponent(i) instanceof JMenuItem) {
-                JMenuItem item = (JMenuItem)m.getComponent(n);
-                JMenuItem remove = new JMenuItem(item.getText(), item.getIcon());
-                remove.addActionListener(a -> {
-                  m.remove(n);
-                  clearListener();
-                  save();
-                  MainApplication.getToolbar().refreshToolbarControl();
-                });
-                removeAction.add(remove);
-                
-                JMenuItem addSeparator = new JMenuItem(item.getText(), item.getIcon());
-                addSeparator.addActionListener(a -> {
-                  m.add(new JPopupMenu.Separator(), n);
-                  save();
-                });
-                addSeparatorAction.add(addSeparator);
-              }
-              else if(m.getComponent(i) instanceof JPopupMenu.Separator) {
-                JPopupMenu.Separator sep = new JPopupMenu.Separator();
-                sep.addMouseListener(new MouseAdapter() {
-                  public void mouseClicked(MouseEvent e) {
-                    m.remove(n);
-                    categoryMenu.setVisible(false);
-                    save();
-                  };
-                });
-                removeAction.add(sep);
-                addSeparatorAction.addSeparator();
-              }
-            }
-            
-            removeAction.setEnabled(removeAction.getItemCount() > 0);
-            addSeparatorAction.setEnabled(removeAction.getItemCount() > 0);
-          }
+        Category c = model.getByView(categoryMenu.getInvoker());
+        
+        if(c != null) {
+          managementMenu.refresh(c);
         }
       }
+      
       @Override
-      public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
-        removeAction.removeAll();
-        removeAction.setEnabled(false);
-        addSeparatorAction.removeAll();
-        addSeparatorAction.setEnabled(false);
-      }
+      public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {}
       
       @Override
       public void popupMenuCanceled(PopupMenuEvent e) {}
     });
     
     categoryMenu.add(tr("Reset category")).addActionListener(e -> {
-      if(categoryMenu.getInvoker() instanceof JButton) {
-        int index = menuNames.indexOf(((JButton)categoryMenu.getInvoker()).getAction().getValue(Action.NAME));
+      Category c = model.getByView(categoryMenu.getInvoker());
+      
+      if(c != null) {
+        removeCategory(c);
+        save();
         
-        if(index >= 0) {
-          clearListener();
-          
-          removeFromLists(index);
-          save();
-          
-          MainApplication.getToolbar().refreshToolbarControl();          
-        }
+        host.refresh();          
       }
     });
     
     categoryMenu.addSeparator();
-    categoryMenu.add(addSeparatorAction);
-    categoryMenu.add(removeAction);
+    categoryMenu.add(managementMenu.addSeparatorAction);
+    categoryMenu.add(managementMenu.removeAction);
+    categoryMenu.add(managementMenu.nestAction);
+    categoryMenu.addSeparator();
+    categoryMenu.add(tr("Diagnostics")).addActionListener(e -> showDiagnostics());
     
     containerAdapter = new ContainerAdapter() {
       @Override
       public void componentAdded(ContainerEvent e) {
-        if(!isLoading && lastAdded < System.currentTimeMillis() && !(e.getChild() instanceof JSeparator && ((JSeparator)e.getChild()).getOrientation() == JSeparator.HORIZONTAL)) {
+        addToIndex(e.getChild());
+        
+        if(trace.isRecording()) {
+          recordToolbarEvent(EventTrace.ADDED, e.getChild(), String.valueOf(host.getControl().getComponentIndex(e.getChild())));
+        }
+        
+        if(isRestoreDeferred) {
+          if(pendingRestore != null) {
+            scheduler.schedule(EVENT_RESTORE, ToolbarCategoriesPlugin.this::restorePending);
+          }
+        }
+        else if(!isLoading && lastAdded < scheduler.now() && !(e.getChild() instanceof JSeparator && ((JSeparator)e.getChild()).getOrientation() == JSeparator.HORIZONTAL)) {
           handleComponentAdded();
         }
       }
+      
+      @Override
+      public void componentRemoved(ContainerEvent e) {
+        removeFromIndex(e.getChild());
+        
+        if(trace.isRecording()) {
+          recordToolbarEvent(EventTrace.REMOVED, e.getChild());
+        }
+        
+        if(e.getChild() instanceof JButton) {
+          setSelected((JButton)e.getChild(), false);
+        }
+        
+        if(model.getByView(e.getChild()) == null) {
+          listeners.releaseTarget(Scope.CATEGORIES, e.getChild());
+        }
+      }
     };
     
     buttonsAdapter = new MouseAdapter() {
@@ -229,32 +377,31 @@ public class ToolbarCategoriesPlugin extends Plugin {
             modifiers |= ActionEvent.META_MASK;
           }
           
-          int index = toolbarButtons.indexOf(e.getComponent());
+          Category category = model.getByView(e.getComponent());
           Action a = null;
           
-          if(index >= 0) {
-            JMenuItem c = findMenuItem((JMenuItem)menus.get(index).getComponent(0));
+          if(category != null) {
+            PrimaryAction primary = getPrimaryAction(category);
+            a = primary.action;
             
-            if(!(c instanceof JMenu) && c instanceof JMenuItem && c.getAction() != null) {
-              a = c.getAction();
+            if(a != null) {
+              usage.record(primary.entry);
             }
           }
-          else {
-            Point p = MouseInfo.getPointerInfo().getLocation();
-            SwingUtilities.convertPointFromScreen(p, MainApplication.getToolbar().control);
+          else if(e.getComponent() instanceof JButton) {
+            a = ((JButton)e.getComponent()).getAction();
             
-            Component c = MainApplication.getToolbar().control.getComponentAt(p);
-            
-            if(c instanceof JButton) {
-              a = ((JButton)c).getAction();
+            if(a instanceof TaggingPresetMenu) {
+              WeakReference<Action> cached = presetPrimaryActions.get(a);
+              Action primary = cached != null ? cached.get() : null;
               
-              if(a instanceof TaggingPresetMenu) {
+              if(primary == null) {
                 JMenuItem m = findMenuItem(((TaggingPresetMenu)a).menu);
-                
-                if(!(m instanceof JMenu)) {
-                  a = m.getAction();
-                }
+                primary = m instanceof JMenu || m.getAction() == null ? a : m.getAction();
+                presetPrimaryActions.put(a, new WeakReference<>(primary));
               }
+              
+              a = primary;
             }
           }
           
@@ -266,21 +413,47 @@ public class ToolbarCategoriesPlugin extends Plugin {
     };
         
     enabledListener = e -> {
-      updateEnabledState();
+      if(e.getSource() instanceof Action && !"enabled".equals(e.getPropertyName())) {
+        return;
+      }
+      
+      if(trace.isRecording()) {
+        String id = e.getSource() instanceof Action ? getToolbarId((Action)e.getSource()) : getToolbarId((Component)e.getSource());
+        
+        if(id != null) {
+          trace.record(EventTrace.ENABLED, id, String.valueOf(e.getNewValue()));
+        }
+      }
+      
+      if(SwingUtilities.isEventDispatchThread()) {
+        enabledChanged(e.getSource());
+      }
+      else {
+        SwingUtilities.invokeLater(() -> enabledChanged(e.getSource()));
+      }
     };
         
-    if(MainApplication.getToolbar() != null) {
-      JPopupMenu m = MainApplication.getToolbar().control.getComponentPopupMenu();
-      m.addPopupMenuListener(new PopupMenuListener() {
+    quickLaunchAction = new AbstractAction(tr("Search toolbar categories")) {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        showQuickLaunch();
+      }
+    };
+    
+    if(host.getControl() != null) {
+      JPopupMenu m = host.getControl().getComponentPopupMenu();
+      listeners.addPopupMenuListener(Scope.PLUGIN, m, new PopupMenuListener() {
         @Override
         public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+          // the restore may move the button under the pointer into a category
+          restorePending();
           componentCurrent = null;
           
           Point p = MouseInfo.getPointerInfo().getLocation();
           
-          SwingUtilities.convertPointFromScreen(p, MainApplication.getToolbar().control);
+          SwingUtilities.convertPointFromScreen(p, host.getControl());
           
-          Component c = MainApplication.getToolbar().control.getComponentAt(p);
+          Component c = host.getControl().getComponentAt(p);
           
           if(c instanceof JButton) {
             Action a = ((JButton)c).getAction();
@@ -294,26 +467,31 @@ public class ToolbarCategoriesPlugin extends Plugin {
         
         @Override
         public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
-          JPopupMenu m = MainApplication.getToolbar().control.getComponentPopupMenu();
-          
-          if(separator != null) {
-            m.remove(separator);
-            m.remove(categoryAddTo);
-            separator = null;
-          }
+          removeMenu();
         }
         
         @Override
         public void popupMenuCanceled(PopupMenuEvent e) {}
       });
     }
+    
+    if(Config.getPref().getBoolean(KEY_TRACE, false)) {
+      startTrace();
+    }
   }
   
-  private JMenuItem findMenuItem(JMenuItem c) {
+  JMenuItem findMenuItem(JMenuItem c) {
     boolean found = true;
     while(found && c instanceof JMenu) {
       found = false;
       
+      if(c instanceof PresetMenuCopy) {
+        ((PresetMenuCopy)c).fill();
+      }
+      else if(c instanceof SubcategoryMenu) {
+        buildSubcategory(((SubcategoryMenu)c).category);
+      }
+      
       for(int i = 0; i < ((JMenu)c).getItemCount(); i++) {
         if(((JMenu)c).getItem(i) instanceof JMenuItem) {
           c = (JMenuItem)((JMenu)c).getItem(i);
@@ -329,382 +507,1845 @@ public class ToolbarCategoriesPlugin extends Plugin {
   @Override
   public void mapFrameInitialized(MapFrame oldFrame, MapFrame newFrame) {
     if(oldFrame != null) {
-      MainApplication.getToolbar().control.removeContainerListener(containerAdapter);
-      Config.getPref().removeKeyPreferenceChangeListener(KEY_MOUSE_MIDDLE_ENABLED, prefListener);
+      listeners.release(Scope.MAP_FRAME);
     }
     
     categoryAddTo.setEnabled(newFrame != null);
+    profileMenu.setEnabled(newFrame != null);
+    
+    if(newFrame == null) {
+      persister.flush();
+      usage.flush();
+    }
     
     if(newFrame != null) {
-      MainApplication.getToolbar().control.addContainerListener(containerAdapter);
-      Config.getPref().addKeyPreferenceChangeListener(KEY_MOUSE_MIDDLE_ENABLED, prefListener);
+      if(quickLaunchShortcut == null) {
+        quickLaunchShortcut = Shortcut.registerShortcut("toolbarcategories:quicklaunch", tr("Toolbar: {0}", tr("Search toolbar categories")), KeyEvent.VK_SPACE, Shortcut.ALT_CTRL_SHIFT);
+      }
+      
+      listeners.addActionShortcut(Scope.PLUGIN, quickLaunchAction, quickLaunchShortcut);
+      listeners.addTaggingPresetListener(Scope.PLUGIN, presetListener);
+      addToolbarListeners();
       
       if(!Config.getPref().getBoolean(KEY_INFO_SHOWN,false)) {
-        new Thread() {
-          @Override
-          public void run() {
-            try {
-              Thread.sleep(1000);
-            } catch (InterruptedException e) {}
-            
-            Config.getPref().putBoolean(KEY_INFO_SHOWN, true);
-            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(MainApplication.getMainFrame(), tr("To add a toolbar element to a toolbar category open the context menu on that element and select:\n''{0}''\n\nTo delete a toolbar category open the context menu on that category icon and select:\n''{1}''\n\nThe first action inside a category can directly be accessed with clicking on the category icon with the middle mouse button.\n\nThe same function of the middle mouse button is added to all other toolbar elements.\n\nTo disabled the middle mouse button for the other elements set ''false'' as value for the preference ''{2}''", tr("Add to toolbar category"), tr("Reset category"), KEY_MOUSE_MIDDLE_ENABLED), tr("How to add categories to toolbar?"), JOptionPane.INFORMATION_MESSAGE));
-          };
-        }.start();
+        scheduler.schedule(EVENT_INFO, () -> {
+          Config.getPref().putBoolean(KEY_INFO_SHOWN, true);
+          JOptionPane.showMessageDialog(MainApplication.getMainFrame(), tr("To add a toolbar element to a toolbar category open the context menu on that element and select:\n''{0}''\n\nTo delete a toolbar category open the context menu on that category icon and select:\n''{1}''\n\nThe first action inside a category can directly be accessed with clicking on the category icon with the middle mouse button.\n\nThe same function of the middle mouse button is added to all other toolbar elements.\n\nTo disabled the middle mouse button for the other elements set ''false'' as value for the preference ''{2}''", tr("Add to toolbar category"), tr("Reset category"), KEY_MOUSE_MIDDLE_ENABLED), tr("How to add categories to toolbar?"), JOptionPane.INFORMATION_MESSAGE);
+        });
       }
     }
     
-    if(!wasLoaded) {
+    if(!wasLoaded && newFrame != null && Config.getPref().getBoolean(KEY_DEFERRED_RESTORE, true)) {
+      restoreDeferred();
+    }
+    else if(!wasLoaded) {
       load();
     }
   }
+  
+  /**
+   * Reads the layout on a background thread and restores the categories once the toolbar
+   * did not change for the quiet period of {@link #EVENT_RESTORE}, so the first map frame
+   * is not held up by the plugin. Opening the toolbar context menu restores them at once.
+   */
+  private void restoreDeferred() {
+    isRestoreDeferred = true;
+    
+    Thread reader = new Thread(() -> {
+      Layout layout = persister.fetch();
+      
+      GuiHelper.runInEDT(() -> {
+        if(isRestoreDeferred) {
+          pendingRestore = layout;
+          scheduler.schedule(EVENT_RESTORE, this::restorePending);
+        }
+      });
+    }, getClass().getSimpleName()+"-restore");
+    reader.setDaemon(true);
+    reader.start();
+  }
+  
+  /**
+   * Restores deferred categories at once, before the categories are shown or edited. If the
+   * layout is still being read it is read again here, the result of the reader is dropped.
+   */
+  private void restorePending() {
+    if(isRestoreDeferred) {
+      Layout layout = pendingRestore;
+      isRestoreDeferred = false;
+      pendingRestore = null;
+      scheduler.cancel(EVENT_RESTORE);
+      restore(layout != null ? layout : persister.fetch());
+    }
+  }
+    
+  @Override
+  public void destroy() {
+    stopTrace();
+    persister.flush();
+    usage.flush();
+    scheduler.cancelAll();
+    isRestoreDeferred = false;
+    pendingRestore = null;
+    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    
+    clearLists();
+    listeners.releaseAll();
+    toolbarIndex.clear();
+    quickLaunchIndex.clear();
+    buttonIcons.clear();
+    itemIcons.clear();
+    
+    if(host.getControl() != null) {
+      host.refresh();
+    }
+  }
     
-  private JPopupMenu createPopupMenu(JPopupMenu m, String name, boolean save) {
-    ToolbarCategoryAction popupAction = new ToolbarCategoryAction(m, name, componentCurrent);
-    JToolBar toolbar = MainApplication.getToolbar().control;
+  /** Registers the listeners on the toolbar and its preferences that live as long as a map frame. */
+  void addToolbarListeners() {
+    listeners.addContainerListener(Scope.MAP_FRAME, host.getControl(), containerAdapter);
+    listeners.addKeyPreferenceChangeListener(Scope.MAP_FRAME, KEY_MOUSE_MIDDLE_ENABLED, prefListener);
+  }
+  
+  /**
+   * Creates the category of the given name from the given button and the selected buttons,
+   * if the category exists they are added to it.
+   */
+  void createCategory(JButton current, String name) {
+    restorePending();
+    componentCurrent = current;
+    trace.record(EventTrace.CREATE, name, String.valueOf(getToolbarId(current)));
+    
+    Category c = model.getByName(name);
+    
+    if(c != null) {
+      addSelectionToCategory(c, -1);
+      return;
+    }
+    
+    List<JButton> buttons = getButtonsToMove();
+    buttons.remove(componentCurrent);
     
+    lastAdded = scheduler.now()+2000;
+    c = createCategory(name, buttons.isEmpty());
+    
+    if(!buttons.isEmpty()) {
+      moveToCategory(c, buttons, -1);
+    }
+  }
+  
+  private Category createCategory(String name, boolean save) {
     int index = removeCurrentComponentFromToolbar(true);
+    Category c = createCategory(name, componentCurrent, index);
+    
+    addToCategory(c, false, save, -1);
+    host.getControl().repaint();
+    
+    return c;
+  }
+  
+  /**
+   * Creates an empty category with its button at the given index of the toolbar, {@code -1} to append it.
+   * @param look button the category button takes the icon and enabled state of
+   */
+  private Category createCategory(String name, JButton look, int index) {
+    Category c = model.add(name);
+    JPopupMenu m = new JPopupMenu();
+    boolean compoundIcon = look.getIcon() != null && Objects.equals(look.getIcon().getClass().getCanonicalName(),"org.openstreetmap.josm.plugins.multilinetoolbar.MultiLineToolbarPlugin.CompoundIcon");
+    IconCache.Icons icons = buttonIcons.get(getToolbarId(look), look.getIcon(), compoundIcon ? look.getDisabledIcon() : null);
+    ToolbarCategoryAction popupAction = new ToolbarCategoryAction(m, name, icons != null ? icons.enabled : look.getIcon(), () -> arrangeByUsage(c));
+    JToolBar toolbar = host.getControl();
     
     JButton component = (JButton)toolbar.add(popupAction);
-    component.setEnabled(componentCurrent.isEnabled());
+    component.setEnabled(look.isEnabled());
     
-    if(Objects.equals(component.getIcon().getClass().getCanonicalName(),"org.openstreetmap.josm.plugins.multilinetoolbar.MultiLineToolbarPlugin.CompoundIcon")) {
-      component.setDisabledIcon(componentCurrent.getDisabledIcon());
+    if(icons != null) {
+      component.setDisabledIcon(icons.disabled);
+    }
+    else if(compoundIcon) {
+      component.setDisabledIcon(look.getDisabledIcon());
     }
     
     popupAction.setParent(component);
-    toolbarButtons.add(component);
-    component.addMouseListener(buttonsAdapter);
-    component.setComponentPopupMenu(categoryMenu);
+    model.attach(c, m, component);
+    enabledCounters.put(c, new EnabledCounter(component));
+    listeners.addMouseListener(Scope.CATEGORIES, component, buttonsAdapter);
+    listeners.setComponentPopupMenu(Scope.CATEGORIES, component, categoryMenu);
     
     if(index != -1) {
       toolbar.remove(component);
       toolbar.add(component, index);
     }
-        
-    addToCategory(m, false, save, -1);
-    toolbar.repaint();
     
-    return m;
+    return c;
   }
   
   private int removeCurrentComponentFromToolbar(boolean remove) {
     int index = -1;
     
     if(remove && componentCurrent != null) {
-      JToolBar toolbar = MainApplication.getToolbar().control;
+      JToolBar toolbar = host.getControl();
+      index = toolbar.getComponentIndex(componentCurrent);
       
-      for(int i = 0; i < toolbar.getComponentCount(); i++) {
-        if(Objects.equals(toolbar.getComponent(i), componentCurrent)) {
-          toolbar.remove(i);
-          index = i;
-          break;
-        }
+      if(index != -1) {
+        toolbar.remove(index);
+        removeFromIndex(componentCurrent);
       }
     }
     
     return index;
   }
   
-  private JMenu createMenu(JMenu menu) {
-    JMenu m = new JMenu(menu.getAction());
-    m.setText(menu.getText());
+  JMenu createMenu(JMenu menu) {
+    return new PresetMenuCopy(menu);
+  }
+  
+  private void addToCategory(Category c, boolean remove, boolean save, int n) {
+    buildSubcategory(c);
+    removeCurrentComponentFromToolbar(remove);
+    
+    registerEnabled(c, addItem(c, componentCurrent.getAction(), n));
+    
+    componentCurrent = null;
+    
+    if(save) {
+      save();
+    }
+  }
+  
+  /** Adds the selected buttons and the one the context menu was opened on to the category. */
+  private void addSelectionToCategory(Category c, int n) {
+    List<JButton> buttons = getButtonsToMove();
     
-    for(int i = 0; i < menu.getMenuComponentCount(); i++) {
-      if(menu.getMenuComponent(i) instanceof JMenu) {
-        m.add(createMenu((JMenu)menu.getMenuComponent(i)));
-      }
-      else if(menu.getMenuComponent(i) instanceof JMenuItem) {
-        JMenuItem item = (JMenuItem)menu.getMenuComponent(i);
-        m.add(item.getAction()).setText(item.getText());
-        item.addPropertyChangeListener("enabled", enabledListener);
-      }
-      else if(menu.getMenuComponent(i) instanceof JPopupMenu.Separator) {
-        m.addSeparator();
+    if(buttons.size() > 1) {
+      moveToCategory(c, buttons, n);
+    }
+    else {
+      addToCategory(c, true, true, n);
+    }
+  }
+  
+  /**
+   * Moves the given buttons into the category as one transaction: the toolbar is laid out,
+   * the enabled state of the category button is set and the layout is saved once at the end.
+   */
+  private void moveToCategory(Category c, List<JButton> buttons, int n) {
+    JToolBar toolbar = host.getControl();
+    buildSubcategory(c);
+    EnabledCounter counter = enabledCounters.get(c);
+    
+    if(counter != null) {
+      counter.setDeferred(true);
+    }
+    
+    for(JButton b : buttons) {
+      componentCurrent = b;
+      addToCategory(c, true, false, n);
+      
+      if(n >= 0) {
+        n++;
       }
     }
     
-    return m;
+    clearSelection();
+    
+    if(counter != null) {
+      counter.setDeferred(false);
+    }
+    
+    toolbar.revalidate();
+    toolbar.repaint();
+    save();
   }
   
-  private void addToCategory(JPopupMenu menu, boolean remove, boolean save, int n) {
-    removeCurrentComponentFromToolbar(remove);
+  /** @return the selected buttons and the one the context menu was opened on in toolbar order */
+  private List<JButton> getButtonsToMove() {
+    List<JButton> buttons = new ArrayList<>();
+    JToolBar toolbar = host.getControl();
     
-    Action a = componentCurrent.getAction();
+    for(Component c : toolbar.getComponents()) {
+      if(c == componentCurrent || selection.containsKey(c)) {
+        buttons.add((JButton)c);
+      }
+    }
     
+    return buttons;
+  }
+  
+  private void setSelected(JButton b, boolean selected) {
+    if(selected && !selection.containsKey(b)) {
+      Color color = UIManager.getColor("List.selectionBackground");
+      selection.put(b, b.getBorder());
+      b.setBorder(BorderFactory.createCompoundBorder(BorderFactory.createLineBorder(color != null ? color : Color.BLUE, 2), b.getBorder()));
+    }
+    else if(!selected && selection.containsKey(b)) {
+      b.setBorder(selection.remove(b));
+    }
+  }
+  
+  private void clearSelection() {
+    for(JButton b : new ArrayList<>(selection.keySet())) {
+      setSelected(b, false);
+    }
+  }
+  
+  private JMenuItem addItem(Category c, Action a, int n) {
+    JPopupMenu menu = c.getMenu();
     JMenuItem item = null;
     
     if(a instanceof TaggingPresetMenu) {
       item = menu.add(createMenu(((TaggingPresetMenu)a).menu));
-      
-      if(n >= 0) {
-        menu.remove(item);
-        menu.add(item, n);
-      }
     }
     else {
       item = menu.add(a);
-      
-      if(n >= 0) {
-        menu.remove(item);
-        menu.add(item, n);
-      }
+      item.addActionListener(usageListener);
       
       if(a instanceof TaggingPreset) {
         item.setText(((TaggingPreset)a).getLocaleName());
       }
     }
     
-    item.addPropertyChangeListener("enabled", enabledListener);
-    
-    componentCurrent = null;
+    setItemIcons(item, a);
     
-    if(save) {
-      save();
+    if(n >= 0) {
+      menu.remove(item);
+      menu.add(item, n);
     }
-  }
-  
-  private synchronized void updateEnabledState() {
-    lastEnabledUpdate = System.currentTimeMillis();
     
-    if(waitEnabled == null || !waitEnabled.isAlive()) {
-      waitEnabled = new Thread() {
-        public void run() {
-          while(System.currentTimeMillis()-lastEnabledUpdate < 50) {
-            try {
-              Thread.sleep(20);
-            } catch (InterruptedException e) {}
-          }
-          
-          for(int k = 0; k < menus.size(); k++) {
-            JPopupMenu m = menus.get(k);
-            AtomicBoolean enabled = new AtomicBoolean();
-            
-            for(int i = 0; i < m.getComponentCount(); i++) {
-              if(!(m.getComponent(i) instanceof JPopupMenu.Separator) && m.getComponent(i).isEnabled()) {
-                enabled.set(true);
-              }
-            }
-            
-            final int index = k;
-            
-            SwingUtilities.invokeLater(() -> {
-              toolbarButtons.get(index).setEnabled(enabled.get());
-            });
-          }
-        }
-      };
-      waitEnabled.start();
-    }
+    c.addEntry(n, getToolbarId(a));
+    
+    return item;
   }
   
-  private void updateMenu() {
-    categoryAddTo.removeAll();
-    
-    JPopupMenu m = MainApplication.getToolbar().control.getComponentPopupMenu();
-    separator = m.add(new JPopupMenu.Separator(), 0);
-    m.add(categoryAddTo, 0);
-    
-    for(int i = 0; i < Math.min(menuNames.size(),menus.size()); i++) {
-      JMenu category = new JMenu(menuNames.get(i));
-      
-      JPopupMenu menu = menus.get(i);
-      
-      for(int k = 1; k < menu.getComponentCount(); k++) {
-        final int n = k;
-        
-        if(menu.getComponent(k) instanceof JMenuItem) {
-          JMenuItem item = (JMenuItem)menu.getComponent(n);
-          JMenuItem add = new JMenuItem(item.getText(), item.getIcon());
-          add.addActionListener(a -> {
-            addToCategory(menu, true, true, n);
-            MainApplication.getToolbar().control.repaint();
-          });
-          
-          category.add(add);
-        }
-        else if(menu.getComponent(k) instanceof JPopupMenu.Separator) {
-          JPopupMenu.Separator sep = new JPopupMenu.Separator();
-          sep.addMouseListener(new MouseAdapter() {
-            public void mouseClicked(MouseEvent e) {
-              addToCategory(menu, true, true, n);
-              category.setPopupMenuVisible(false);
-              categoryAddTo.setPopupMenuVisible(false);
-              categoryAddTo.getParent().setVisible(false);
-              MainApplication.getToolbar().control.repaint();
-            };
-          });
-          category.add(sep);
-        }
-      }
-      
-      JMenuItem atTheEnd = new JMenuItem(tr("At the end"));
-      atTheEnd.addActionListener(a -> {
-        addToCategory(menu, true, true, -1);
-        MainApplication.getToolbar().control.repaint();          
-      });
-      
-      category.addSeparator();
-      category.add(atTheEnd);
+  /** Shows the cached icons for the action on the item, the icons of the action itself if there are none. */
+  private void setItemIcons(JMenuItem item, Action a) {
+    IconCache.Icons icons = itemIcons.get(getToolbarId(a), item.getIcon(), null);
     
-      categoryAddTo.add(category);
+    if(icons != null) {
+      item.setIcon(icons.enabled);
+      item.setDisabledIcon(icons.disabled);
     }
-    
-    if(categoryAddTo.getMenuComponentCount() > 0) {
-      categoryAddTo.addSeparator();
+    else {
+      item.setDisabledIcon(null);
     }
-    
-    categoryAddTo.add(categoryCreate);
   }
   
-  private void removeFromLists(int index) {
-    menuNames.remove(index);
-    menus.remove(index);
-    toolbarButtons.remove(index);
+  private void insertEntry(Category c, int n, String entry, Component view) {
+    c.addEntry(n, entry);
+    c.getMenu().add(view, n);
   }
   
-  private void clearLists() {
-    clearListener();
+  private void removeEntry(Category c, int n) {
+    String entry = c.removeEntry(n);
+    c.getMenu().remove(n);
     
-    menuNames.clear();
-    menus.clear();
-    toolbarButtons.clear();    
+    if(Category.isSubcategory(entry) && model.getByName(Category.getSubcategoryName(entry)) != null) {
+      removeCategory(model.getByName(Category.getSubcategoryName(entry)));
+    }
   }
   
-  private synchronized void load() {
-    if(!isLoading) {
-      JToolBar toolbar = MainApplication.getToolbar().control;
-      isLoading = true;
-      clearLists();
-     
-      menuNames.addAll(Config.getPref().getList(KEY_LIST_NAMES, Collections.emptyList()));
+  private void insertSubcategory(Category parent, int n, Category c) {
+    JMenu menu = createSubcategoryMenu(c);
+    insertEntry(parent, n, Category.subcategory(c.getName()), menu);
+    registerEnabled(parent, menu);
+  }
+  
+  /** @return the submenu of a nested category, its items are created when it is opened for the first time */
+  private JMenu createSubcategoryMenu(Category c) {
+    JMenu menu = new SubcategoryMenu(c);
+    menu.addMenuListener(new MenuListener() {
+      @Override
+      public void menuSelected(MenuEvent e) {
+        buildSubcategory(c);
+        arrangeByUsage(c);
+      }
       
-      List<Integer> removeNames = new LinkedList<>();
+      @Override
+      public void menuDeselected(MenuEvent e) {}
       
-      if(!menuNames.isEmpty()) {
-        List<List<String>> itemList = Config.getPref().getListOfLists(KEY_LIST_ITEMS);
-        
-        for(int j = 0; j < menuNames.size(); j++) {
-          List<String> list = itemList.get(j);
-          JPopupMenu m = new JPopupMenu();
-          
-          for(int i = 0; i < list.size(); i++) {
-            String actionId = list.get(i);
-            
-            if(Objects.equals(SEPARATOR, actionId)) {
-              m.addSeparator();
-            }
-            else {
-              for(int k = 0; k < toolbar.getComponentCount(); k++) {
-                Component c = toolbar.getComponent(k);
-                              
-                if(c instanceof JButton && ((JButton)c).getAction() != null && Objects.equals(((JButton)c).getAction().getValue("toolbar"), actionId)) {
-                  componentCurrent = (JButton)c;
-                  
-                  if(m.getComponentCount() == 0) {
-                    menus.add(createPopupMenu(m, menuNames.get(j), false));
-                  }
-                  else {
-                    addToCategory(menus.get(j), true, false, -1);
-                  }
-                  
-                  componentCurrent = null;
-                  break;
-                }
-              }
-            }
-          }
-          
-          if(m.getComponentCount() == 0) {
-            removeNames.add(j);
-          }
-        }
-        
-        for(int i = removeNames.size()-1; i >= 0; i--) {
-          menuNames.remove((int)removeNames.get(i));
-          
-          if(menus.size() > (int)removeNames.get(i)) {
-            menus.remove((int)removeNames.get(i));
-          }
+      @Override
+      public void menuCanceled(MenuEvent e) {}
+    });
+    
+    subcategoryMenus.put(c, menu);
+    
+    EnabledCounter counter = new EnabledCounter(menu);
+    enabledCounters.put(c, counter);
+    
+    if(c.getMenu() == null) {
+      counter.setDeferred(true);
+      
+      for(String entry : c.getEntries()) {
+        if(parked.containsKey(entry)) {
+          registerEnabled(c, parked.get(entry));
         }
       }
       
-      updateMiddleMouseButtonForOtherToolbarActions(false);
-      
-      wasLoaded = true;
-      isLoading = false;
+      counter.setDeferred(false);
     }
+    
+    return menu;
   }
   
-  private synchronized void handleComponentAdded() {
-    lastAdded = System.currentTimeMillis();
-    if(wait == null || !wait.isAlive()) {
-      wait = new Thread() {
-        @Override
-        public void run() {
-          while(System.currentTimeMillis() - lastAdded < 200) {
-            try {
-              Thread.sleep(100);
-            } catch (InterruptedException e) {}
-          }
-          
-          SwingUtilities.invokeLater(() -> load());
-        }
-      };
-      wait.start();
+  /** Parks the action of a nested category that was not opened yet, its enabled state counts for the category. */
+  private Action park(Category c, String id, Action a) {
+    Action old = parked.put(id, a);
+    
+    if(old != a) {
+      if(old != null) {
+        unregisterEnabled(old);
+      }
+      
+      registerEnabled(c, a);
     }
+    
+    return old;
   }
   
-  private void clearListener() {
-    for(JPopupMenu m : menus) {
-      for(int i = 0; i < m.getComponentCount(); i++) {
-        if(m.getComponent(i) instanceof JMenuItem) {
-          m.getComponent(i).removePropertyChangeListener(enabledListener);
-        }
-      }
-    }
+  private Action unpark(String id) {
+    Action a = parked.remove(id);
     
-    for(JButton b : toolbarButtons) {
-      b.removeMouseListener(buttonsAdapter);
-      b.setComponentPopupMenu(null);
+    if(a != null) {
+      unregisterEnabled(a);
     }
+    
+    return a;
   }
   
-  private void save() {
-    Config.getPref().putList(KEY_LIST_NAMES, menuNames);
+  /** Creates the items of a nested category from its parked actions, if not done yet. */
+  private void buildSubcategory(Category c) {
+    JMenu menu = subcategoryMenus.get(c);
     
-    List<List<String>> itemList = new LinkedList<>();
+    if(c.getMenu() != null || menu == null) {
+      return;
+    }
     
-    for(JPopupMenu m : menus) {
-      List<String> items = new LinkedList<>();
-      itemList.add(items);
-      
-      for(int i = 0; i < m.getComponentCount(); i++) {
-        if(m.getComponent(i) instanceof JMenuItem) {
-          Action a = ((JMenuItem)m.getComponent(i)).getAction();
-          
-          if(a != null && a.getValue("toolbar") instanceof String) {
-            items.add((String)a.getValue("toolbar"));
+    List<String> entries = new ArrayList<>(c.getEntries());
+    c.setEntries(Collections.emptyList());
+    model.attach(c, menu.getPopupMenu(), null);
+    
+    EnabledCounter counter = enabledCounters.get(c);
+    counter.setDeferred(true);
+    
+    for(String entry : entries) {
+      if(Category.isSeparator(entry)) {
+        insertEntry(c, c.size(), entry, new JPopupMenu.Separator());
+      }
+      else if(Category.isSubcategory(entry)) {
+        Category sub = model.getByName(Category.getSubcategoryName(entry));
+        
+        if(sub != null) {
+          insertSubcategory(c, c.size(), sub);
+        }
+      }
+      else if(parked.containsKey(entry)) {
+        registerEnabled(c, addItem(c, unpark(entry), -1));
+      }
+    }
+    
+    counter.setDeferred(false);
+  }
+  
+  /** Moves a category from the toolbar into another category. */
+  private void nestCategory(Category c, Category target) {
+    JToolBar toolbar = host.getControl();
+    buildSubcategory(target);
+    
+    Component[] items = c.getMenu().getComponents();
+    
+    for(Component item : items) {
+      unregisterEnabled(item);
+    }
+    
+    enabledCounters.remove(c);
+    primaryActions.remove(c);
+    listeners.releaseTarget(Scope.CATEGORIES, c.getButton());
+    toolbar.remove(c.getButton());
+    
+    JMenu menu = createSubcategoryMenu(c);
+    EnabledCounter counter = enabledCounters.get(c);
+    counter.setDeferred(true);
+    
+    for(Component item : items) {
+      menu.add(item);
+      
+      if(item instanceof JMenuItem) {
+        registerEnabled(c, item);
+      }
+    }
+    
+    counter.setDeferred(false);
+    model.attach(c, menu.getPopupMenu(), null);
+    c.setParent(target);
+    insertEntry(target, target.size(), Category.subcategory(c.getName()), menu);
+    registerEnabled(target, menu);
+    
+    // the paths shown for the category and the ones nested in it changed
+    for(Category d : model.getCategories()) {
+      if(isNestedIn(d, c)) {
+        d.viewsChanged();
+        categoryAddToMenus.remove(d);
+      }
+    }
+    
+    toolbar.revalidate();
+    toolbar.repaint();
+    save();
+  }
+  
+  /** @return {@code true} if the category is the given one or nested in it at any depth */
+  private static boolean isNestedIn(Category c, Category ancestor) {
+    for(Category p = c; p != null; p = p.getParent()) {
+      if(p == ancestor) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * @return the action fired by the middle mouse button, the one of the first item or, if
+   *         the order follows usage, of the most used item
+   */
+  private PrimaryAction getPrimaryAction(Category c) {
+    boolean adaptive = Config.getPref().getBoolean(KEY_ADAPTIVE_ORDER, false);
+    int usageCount = adaptive ? usage.getModCount() : -1;
+    PrimaryAction primary = primaryActions.get(c);
+    
+    if(primary == null || primary.modCount != c.getModCount() || primary.usageCount != usageCount) {
+      Component[] items = c.getMenu().getComponents();
+      int target = -1;
+      double best = 0;
+      
+      for(int i = 0; i < items.length; i++) {
+        if(items[i] instanceof JMenuItem) {
+          double score = adaptive && i < c.size() ? usage.getScore(c.getEntry(i)) : 0;
+          
+          if(target == -1 || score > best) {
+            target = i;
+            best = score;
+          }
+          
+          if(!adaptive) {
+            break;
+          }
+        }
+      }
+      
+      Action a = null;
+      
+      if(target != -1) {
+        JMenuItem m = findMenuItem((JMenuItem)items[target]);
+        
+        if(!(m instanceof JMenu) && m.getAction() != null) {
+          a = m.getAction();
+        }
+      }
+      
+      primary = new PrimaryAction(c.getModCount(), usageCount, target != -1 && target < c.size() ? c.getEntry(target) : null, a);
+      primaryActions.put(c, primary);
+    }
+    
+    return primary;
+  }
+  
+  /**
+   * Orders the items between the separators of the category by their recent usage, the
+   * most used first, if enabled. Called when the category is opened, so uses do not
+   * rebuild menus that are not shown. The order the items had before is kept in
+   * {@link #manualOrders}, it is the one saved and it is put back once disabled.
+   */
+  private void arrangeByUsage(Category c) {
+    if(c.getMenu() == null) {
+      return;
+    }
+    
+    if(!Config.getPref().getBoolean(KEY_ADAPTIVE_ORDER, false)) {
+      List<String> manual = manualOrders.remove(c);
+      
+      if(manual != null) {
+        arranged.remove(c);
+        reorder(c, getOrder(c.getEntries(), entry -> getManualRank(manual, entry)));
+      }
+      
+      return;
+    }
+    
+    Arranged last = arranged.get(c);
+    
+    if(last != null && last.modCount == c.getModCount() && last.usageCount == usage.getModCount()) {
+      return;
+    }
+    
+    manualOrders.computeIfAbsent(c, k -> new ArrayList<>(k.getEntries()));
+    reorder(c, getOrder(c.getEntries(), entry -> Category.isSubcategory(entry) ? 0 : -usage.getScore(entry)));
+    arranged.put(c, new Arranged(c.getModCount(), usage.getModCount()));
+  }
+  
+  /** Puts the entries and items of the category into the given order of their indexes. */
+  private static void reorder(Category c, Integer[] order) {
+    List<String> entries = c.getEntries();
+    Component[] views = c.getMenu().getComponents();
+    
+    if(views.length != entries.size()) {
+      return;
+    }
+    
+    List<String> sorted = new ArrayList<>(order.length);
+    
+    for(int k : order) {
+      sorted.add(entries.get(k));
+    }
+    
+    if(!sorted.equals(entries)) {
+      c.setEntries(sorted);
+      c.getMenu().removeAll();
+      
+      for(int k : order) {
+        c.getMenu().add(views[k]);
+      }
+    }
+  }
+  
+  /**
+   * @return the indexes of the entries sorted by the given key between the separators,
+   *         entries with the same key keep their order
+   */
+  private static Integer[] getOrder(List<String> entries, ToDoubleFunction<String> key) {
+    Integer[] order = new Integer[entries.size()];
+    double[] keys = new double[entries.size()];
+    
+    for(int i = 0; i < order.length; i++) {
+      order[i] = i;
+      keys[i] = Category.isSeparator(entries.get(i)) ? 0 : key.applyAsDouble(entries.get(i));
+    }
+    
+    int from = 0;
+    
+    for(int i = 0; i <= order.length; i++) {
+      if(i == order.length || Category.isSeparator(entries.get(i))) {
+        Arrays.sort(order, from, i, Comparator.comparingDouble(k -> keys[k]));
+        from = i + 1;
+      }
+    }
+    
+    return order;
+  }
+  
+  /** @return the position of the entry in the manual order, entries added since come after the others */
+  private static double getManualRank(List<String> manual, String entry) {
+    int rank = manual.indexOf(entry);
+    return rank >= 0 ? rank : Integer.MAX_VALUE;
+  }
+  
+  /** Counts the enabled state of a menu item or a parked action for the category. */
+  private void registerEnabled(Category c, Object item) {
+    EnabledCounter counter = enabledCounters.get(c);
+    
+    if(counter != null && itemCounters.putIfAbsent(item, counter) == null) {
+      if(item instanceof Action) {
+        listeners.addPropertyChangeListener(Scope.CATEGORIES, (Action)item, enabledListener);
+      }
+      else {
+        listeners.addPropertyChangeListener(Scope.CATEGORIES, (Component)item, "enabled", enabledListener);
+      }
+      
+      counter.update(item, isEnabled(item));
+    }
+  }
+  
+  private static boolean isEnabled(Object item) {
+    return item instanceof Action ? ((Action)item).isEnabled() : ((Component)item).isEnabled();
+  }
+  
+  private void unregisterEnabled(Object item) {
+    EnabledCounter counter = itemCounters.remove(item);
+    
+    if(counter != null) {
+      listeners.release(item, enabledListener);
+      counter.update(item, false);
+    }
+  }
+  
+  private void enabledChanged(Object item) {
+    long start = stats.start();
+    EnabledCounter counter = itemCounters.get(item);
+    
+    if(counter != null) {
+      counter.update(item, isEnabled(item));
+    }
+    
+    stats.stop(Instrumentation.ENABLED_STATE, start);
+  }
+  
+  void updateMenu() {
+    long start = stats.start();
+    JPopupMenu m = host.getControl().getComponentPopupMenu();
+    separator = m.add(new JPopupMenu.Separator(), 0);
+    m.add(selectionToggle, 0);
+    m.add(categoryAddTo, 0);
+    m.add(profileMenu, 2);
+    
+    int moving = getButtonsToMove().size();
+    categoryAddTo.setText(moving > 1 ? tr("Add {0} elements to toolbar category", moving) : tr("Add to toolbar category"));
+    selectionToggle.setSelected(selection.containsKey(componentCurrent));
+    selectionToggle.setEnabled(categoryAddTo.isEnabled());
+    
+    if(categoryAddToModCount != model.getModCount()) {
+      categoryAddToModCount = model.getModCount();
+      categoryAddToMenus.keySet().retainAll(model.getCategories());
+      categoryAddTo.removeAll();
+      
+      for(Category c : model.getCategories()) {
+        categoryAddTo.add(categoryAddToMenus.computeIfAbsent(c, this::createCategoryAddToMenu));
+      }
+      
+      if(categoryAddTo.getMenuComponentCount() > 0) {
+        categoryAddTo.addSeparator();
+      }
+      
+      categoryAddTo.add(categoryCreate);
+    }
+    
+    if(profileMenuModCount != profiles.getModCount()) {
+      profileMenuModCount = profiles.getModCount();
+      fillProfileMenu();
+    }
+    
+    stats.stop(Instrumentation.UPDATE_MENU, start);
+  }
+  
+  void removeMenu() {
+    if(separator != null) {
+      JPopupMenu m = host.getControl().getComponentPopupMenu();
+      m.remove(separator);
+      m.remove(selectionToggle);
+      m.remove(categoryAddTo);
+      m.remove(profileMenu);
+      separator = null;
+    }
+  }
+  
+  private void fillProfileMenu() {
+    profileMenu.removeAll();
+    
+    for(String name : profiles.getNames()) {
+      JRadioButtonMenuItem item = new JRadioButtonMenuItem(getProfileLabel(name), name.equals(profiles.getActive()));
+      item.addActionListener(e -> switchProfile(name));
+      profileMenu.add(item);
+    }
+    
+    profileMenu.addSeparator();
+    profileMenu.add(tr("New profile")).addActionListener(e -> {
+      String name = JOptionPane.showInputDialog(MainApplication.getMainFrame(), tr("Please enter name of profile"), tr("Name of profile?"), JOptionPane.PLAIN_MESSAGE);
+      
+      if(name != null && !name.isBlank() && !profiles.contains(name)) {
+        persister.flush();
+        profiles.add(name, new Layout(persister.getNames(), persister.getItems()));
+        switchProfile(name);
+      }
+    });
+    
+    JMenuItem remove = profileMenu.add(tr("Remove profile ''{0}''", getProfileLabel(profiles.getActive())));
+    remove.setEnabled(profiles.getNames().size() > 1);
+    remove.addActionListener(e -> {
+      String removed = profiles.getActive();
+      
+      for(String name : profiles.getNames()) {
+        if(!name.equals(removed)) {
+          switchProfile(name);
+          profiles.remove(removed);
+          Config.getPref().putListOfLists(getSnapshotKey(removed), null);
+          break;
+        }
+      }
+    });
+  }
+  
+  private static String getProfileLabel(String name) {
+    return name.equals(LayoutProfiles.DEFAULT) ? tr("Default") : name;
+  }
+  
+  private static String getSnapshotKey(String profile) {
+    return profile.equals(LayoutProfiles.DEFAULT) ? KEY_SNAPSHOT : KEY_SNAPSHOT+"."+profile;
+  }
+  
+  /**
+   * Replaces the categories by the ones of the given profile in one batch. The layout of the
+   * profile is kept in memory and its resolved layout snapshot is used, the current categories
+   * are stored as inactive profile.
+   */
+  void switchProfile(String name) {
+    EdtConfinement.check("profile");
+    
+    if(isLoading || name.equals(profiles.getActive()) || !profiles.contains(name)) {
+      return;
+    }
+    
+    restorePending();
+    
+    if(!wasLoaded || isRestoreDeferred) {
+      return;
+    }
+    
+    persister.flush();
+    
+    Layout layout = profiles.activate(name, new Layout(persister.getNames(), persister.getItems()));
+    snapshot = new LayoutSnapshot(getSnapshotKey(name));
+    persister.write(layout);
+    
+    isLoading = true;
+    clearLists();
+    host.refresh();
+    isLoading = false;
+    
+    restore(layout);
+  }
+  
+  /** @return the submenu of the category in {@link #categoryAddTo}, filled when it is expanded and the category changed since */
+  private JMenu createCategoryAddToMenu(Category c) {
+    JMenu category = new JMenu(c.getPath(" \u203A "));
+    category.addMenuListener(new MenuListener() {
+      private int modCount = -1;
+      
+      @Override
+      public void menuSelected(MenuEvent e) {
+        if(modCount != c.getModCount()) {
+          modCount = c.getModCount();
+          fillCategoryAddToMenu(c, category);
+        }
+      }
+      
+      @Override
+      public void menuDeselected(MenuEvent e) {}
+      
+      @Override
+      public void menuCanceled(MenuEvent e) {}
+    });
+    
+    return category;
+  }
+  
+  private void fillCategoryAddToMenu(Category c, JMenu category) {
+    category.removeAll();
+    buildSubcategory(c);
+    
+    JPopupMenu menu = c.getMenu();
+    
+    for(int k = 1; k < menu.getComponentCount(); k++) {
+      final int n = k;
+      
+      if(menu.getComponent(k) instanceof JMenuItem) {
+        JMenuItem item = (JMenuItem)menu.getComponent(n);
+        JMenuItem add = new JMenuItem(item.getText(), item.getIcon());
+        add.addActionListener(a -> {
+          addSelectionToCategory(c, n);
+          host.getControl().repaint();
+        });
+        
+        category.add(add);
+      }
+      else if(menu.getComponent(k) instanceof JPopupMenu.Separator) {
+        JPopupMenu.Separator sep = new JPopupMenu.Separator();
+        sep.addMouseListener(new MouseAdapter() {
+          public void mouseClicked(MouseEvent e) {
+            addSelectionToCategory(c, n);
+            category.setPopupMenuVisible(false);
+            categoryAddTo.setPopupMenuVisible(false);
+            categoryAddTo.getParent().setVisible(false);
+            host.getControl().repaint();
+          };
+        });
+        category.add(sep);
+      }
+    }
+    
+    JMenuItem atTheEnd = new JMenuItem(tr("At the end"));
+    atTheEnd.addActionListener(a -> {
+      addSelectionToCategory(c, -1);
+      host.getControl().repaint();          
+    });
+    
+    category.addSeparator();
+    category.add(atTheEnd);
+  }
+  
+  private void removeCategory(Category c) {
+    for(String entry : c.getEntries()) {
+      Category sub = Category.isSubcategory(entry) ? model.getByName(Category.getSubcategoryName(entry)) : null;
+      
+      if(sub != null && sub.getParent() == c) {
+        removeCategory(sub);
+      }
+      else if(c.getMenu() == null) {
+        unpark(entry);
+      }
+    }
+    
+    if(c.getMenu() != null) {
+      for(Component item : c.getMenu().getComponents()) {
+        unregisterEnabled(item);
+      }
+    }
+    
+    enabledCounters.remove(c);
+    primaryActions.remove(c);
+    arranged.remove(c);
+    manualOrders.remove(c);
+    subcategoryMenus.remove(c);
+    
+    if(c.getButton() != null) {
+      listeners.releaseTarget(Scope.CATEGORIES, c.getButton());
+    }
+    
+    model.remove(c);
+  }
+  
+  private void clearLists() {
+    managementMenu.clear();
+    clearSelection();
+    clearListener();
+    model.clear();
+    subcategoryMenus.clear();
+    parked.clear();
+  }
+  
+  void load() {
+    EdtConfinement.check("categories");
+    
+    if(!isLoading) {
+      isRestoreDeferred = false;
+      pendingRestore = null;
+      scheduler.cancel(EVENT_RESTORE);
+      restore(persister.fetch());
+    }
+  }
+  
+  /**
+   * Rebuilds all categories from the given layout as one batch of toolbar changes.
+   * If the toolbar and the layout are the ones of the last restore the buttons are taken
+   * from the resolved layout snapshot, otherwise each toolbar id is looked up.
+   */
+  private void restore(Layout layout) {
+    if(!isLoading) {
+      long start = stats.start();
+      JToolBar toolbar = host.getControl();
+      isLoading = true;
+      clearLists();
+     
+      persister.use(layout);
+      List<String> layoutNames = persister.getNames();
+      List<List<String>> layoutItems = persister.getItems();
+      
+      int resolved = 0;
+      int missing = 0;
+      boolean fromSnapshot = false;
+      
+      if(!layoutNames.isEmpty()) {
+        long toolbarHash = LayoutSnapshot.hash(toolbar);
+        long layoutHash = LayoutSnapshot.hash(layoutNames, layoutItems);
+        List<Resolved> categories = snapshot.read(toolbarHash, layoutHash, toolbar);
+        
+        if(categories != null) {
+          fromSnapshot = true;
+          toolbarIndexStale = true;
+        }
+        else {
+          rebuildIndex(toolbar);
+          categories = new ArrayList<>(layoutNames.size());
+          missing = resolve(layoutNames, layoutItems, categories);
+          snapshot.write(toolbarHash, layoutHash, categories, toolbar);
+        }
+        
+        Map<String, Resolved> byName = new HashMap<>();
+        Set<String> nested = new HashSet<>();
+        
+        for(Resolved r : categories) {
+          byName.put(r.name, r);
+          
+          for(String sub : r.subcategories) {
+            if(sub != null) {
+              nested.add(sub);
+            }
+          }
+        }
+        
+        for(Resolved r : categories) {
+          if(!nested.contains(r.name)) {
+            resolved += apply(r, byName);
+          }
+        }
+      }
+      
+      updateMiddleMouseButtonForOtherToolbarActions(false);
+      toolbar.revalidate();
+      toolbar.repaint();
+      
+      if(wasLoaded) {
+        Logging.debug("ToolbarCategories: reloaded {0} categories, {1} toolbar ids resolved, {2} missing, {3} listeners registered", model.size(), resolved, missing, listeners.getCount());
+      }
+      else if(fromSnapshot) {
+        Logging.info("ToolbarCategories: restored {0} categories with {1} toolbar ids from the resolved layout snapshot", model.size(), resolved);
+      }
+      else {
+        Logging.info("ToolbarCategories: restored {0} categories, {1} toolbar ids resolved, {2} missing", model.size(), resolved, missing);
+      }
+      
+      wasLoaded = true;
+      isLoading = false;
+      stats.stop(Instrumentation.LOAD, start);
+    }
+  }
+  
+  /**
+   * Looks up the buttons of the layout on the toolbar. Categories named twice and categories
+   * without any button inside, also in their nested categories, are left out.
+   * @return the number of toolbar ids without button
+   */
+  private int resolve(List<String> layoutNames, List<List<String>> layoutItems, List<Resolved> categories) {
+    Map<String, String> parents = getParents(layoutNames, layoutItems);
+    Map<String, Resolved> byName = new LinkedHashMap<>();
+    Set<JButton> used = new HashSet<>();
+    int missing = 0;
+    
+    for(int j = 0; j < layoutNames.size(); j++) {
+      String name = layoutNames.get(j);
+      
+      if(byName.containsKey(name)) {
+        continue;
+      }
+      
+      List<String> list = j < layoutItems.size() ? layoutItems.get(j) : Collections.emptyList();
+      List<JButton> entries = new ArrayList<>(list.size());
+      List<String> subcategories = new ArrayList<>(list.size());
+      
+      for(String actionId : list) {
+        if(Category.isSeparator(actionId)) {
+          entries.add(null);
+          subcategories.add(null);
+          continue;
+        }
+        
+        if(Category.isSubcategory(actionId)) {
+          if(name.equals(parents.get(Category.getSubcategoryName(actionId)))) {
+            entries.add(null);
+            subcategories.add(Category.getSubcategoryName(actionId));
+          }
+          
+          continue;
+        }
+        
+        JButton b = null;
+        
+        for(JButton candidate : toolbarIndex.getOrDefault(actionId, Collections.emptyList())) {
+          if(used.add(candidate)) {
+            b = candidate;
+            break;
+          }
+        }
+        
+        if(b != null) {
+          entries.add(b);
+          subcategories.add(null);
+        }
+        else {
+          missing++;
+        }
+      }
+      
+      byName.put(name, new Resolved(name, entries, subcategories));
+    }
+    
+    for(Resolved r : byName.values()) {
+      if(!parents.containsKey(r.name) && hasButton(r, byName)) {
+        keep(r, byName, categories);
+      }
+    }
+    
+    return missing;
+  }
+  
+  /** Adds the category and its nested categories holding a button to the kept ones, references to the others are dropped. */
+  private static void keep(Resolved r, Map<String, Resolved> byName, List<Resolved> categories) {
+    List<JButton> entries = new ArrayList<>(r.entries.size());
+    List<String> subcategories = new ArrayList<>(r.entries.size());
+    
+    for(int i = 0; i < r.entries.size(); i++) {
+      String sub = r.subcategories.get(i);
+      
+      if(sub == null || hasButton(byName.get(sub), byName)) {
+        entries.add(r.entries.get(i));
+        subcategories.add(sub);
+      }
+    }
+    
+    categories.add(new Resolved(r.name, entries, subcategories));
+    
+    for(String sub : subcategories) {
+      if(sub != null) {
+        keep(byName.get(sub), byName, categories);
+      }
+    }
+  }
+  
+  private static boolean hasButton(Resolved r, Map<String, Resolved> byName) {
+    return getFirstButton(r, byName) != null;
+  }
+  
+  /** @return the first button of the category or its nested categories, {@code null} if there is none */
+  private static JButton getFirstButton(Resolved r, Map<String, Resolved> byName) {
+    for(int i = 0; i < r.entries.size(); i++) {
+      JButton b = r.entries.get(i);
+      
+      if(b == null && r.subcategories.get(i) != null && byName.get(r.subcategories.get(i)) != null) {
+        b = getFirstButton(byName.get(r.subcategories.get(i)), byName);
+      }
+      
+      if(b != null) {
+        return b;
+      }
+    }
+    
+    return null;
+  }
+  
+  /**
+   * @return name of each nested category -> name of the category it is nested in, a category
+   *         referenced more than once is nested in the first one, references that would nest
+   *         a category in itself are ignored
+   */
+  private static Map<String, String> getParents(List<String> layoutNames, List<List<String>> layoutItems) {
+    Map<String, String> parents = new HashMap<>();
+    Set<String> names = new HashSet<>(layoutNames);
+    
+    for(int j = 0; j < layoutNames.size() && j < layoutItems.size(); j++) {
+      for(String entry : layoutItems.get(j)) {
+        if(Category.isSubcategory(entry)) {
+          String child = Category.getSubcategoryName(entry);
+          
+          if(names.contains(child) && !parents.containsKey(child) && !isAncestor(child, layoutNames.get(j), parents)) {
+            parents.put(child, layoutNames.get(j));
+          }
+        }
+      }
+    }
+    
+    return parents;
+  }
+  
+  private static boolean isAncestor(String ancestor, String name, Map<String, String> parents) {
+    for(String p = name; p != null; p = parents.get(p)) {
+      if(p.equals(ancestor)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Creates a category on the toolbar with its nested categories and moves their buttons off the toolbar.
+   * @return the number of buttons moved
+   */
+  private int apply(Resolved r, Map<String, Resolved> byName) {
+    Category c = null;
+    List<Integer> leading = new ArrayList<>();
+    int moved = 0;
+    
+    for(int i = 0; i < r.entries.size(); i++) {
+      JButton b = r.entries.get(i);
+      
+      if(b == null) {
+        if(c != null) {
+          moved += insertResolved(c, c.size(), r, i, byName);
+        }
+        else {
+          leading.add(i);
+        }
+      }
+      else {
+        componentCurrent = b;
+        
+        if(c == null) {
+          c = createCategory(r.name, false);
+          
+          for(int k = 0; k < leading.size(); k++) {
+            moved += insertResolved(c, k, r, leading.get(k), byName);
+          }
+        }
+        else {
+          addToCategory(c, true, false, -1);
+        }
+        
+        componentCurrent = null;
+        moved++;
+      }
+    }
+    
+    // only nested categories hold buttons, the category takes the place and look of the first one
+    JButton look = c == null ? getFirstButton(r, byName) : null;
+    
+    if(look != null) {
+      c = createCategory(r.name, look, host.getControl().getComponentIndex(look));
+      
+      for(int k = 0; k < leading.size(); k++) {
+        moved += insertResolved(c, k, r, leading.get(k), byName);
+      }
+    }
+    
+    return moved;
+  }
+  
+  /**
+   * Inserts the separator or nested category at index {@code i} of the resolved category at {@code n}.
+   * @return the number of buttons moved into the nested category
+   */
+  private int insertResolved(Category c, int n, Resolved r, int i, Map<String, Resolved> byName) {
+    String sub = r.subcategories.get(i);
+    
+    if(sub == null) {
+      insertEntry(c, n, Category.SEPARATOR, new JPopupMenu.Separator());
+      return 0;
+    }
+    
+    int moved = applySubcategory(c, byName.get(sub), byName);
+    insertSubcategory(c, n, model.getByName(sub));
+    
+    return moved;
+  }
+  
+  /**
+   * Creates a nested category without creating its items, the actions of its buttons are parked until it is opened.
+   * @return the number of buttons moved
+   */
+  private int applySubcategory(Category parent, Resolved r, Map<String, Resolved> byName) {
+    JToolBar toolbar = host.getControl();
+    Category c = model.add(r.name);
+    c.setParent(parent);
+    
+    List<String> entries = new ArrayList<>(r.entries.size());
+    int moved = 0;
+    
+    for(int i = 0; i < r.entries.size(); i++) {
+      JButton b = r.entries.get(i);
+      String sub = r.subcategories.get(i);
+      
+      if(sub != null) {
+        moved += applySubcategory(c, byName.get(sub), byName);
+        entries.add(Category.subcategory(sub));
+      }
+      else if(b == null) {
+        entries.add(Category.SEPARATOR);
+      }
+      else {
+        toolbar.remove(b);
+        removeFromIndex(b);
+        park(c, getToolbarId(b), b.getAction());
+        entries.add(getToolbarId(b));
+        moved++;
+      }
+    }
+    
+    c.setEntries(entries);
+    
+    return moved;
+  }
+  
+  private static String getToolbarId(Action a) {
+    return a != null && a.getValue("toolbar") instanceof String ? (String)a.getValue("toolbar") : null;
+  }
+  
+  static String getToolbarId(Component c) {
+    if(c instanceof JButton) {
+      return getToolbarId(((JButton)c).getAction());
+    }
+    else if(c instanceof JMenuItem) {
+      return getToolbarId(((JMenuItem)c).getAction());
+    }
+    
+    return null;
+  }
+  
+  private void rebuildIndex(JToolBar toolbar) {
+    toolbarIndex.clear();
+    toolbarIndexStale = false;
+    
+    for(int k = 0; k < toolbar.getComponentCount(); k++) {
+      addToIndex(toolbar.getComponent(k));
+    }
+  }
+  
+  private void addToIndex(Component c) {
+    String id = getToolbarId(c);
+    
+    if(id != null) {
+      List<JButton> buttons = toolbarIndex.computeIfAbsent(id, k -> new ArrayList<>(1));
+      
+      if(!buttons.contains(c)) {
+        buttons.add((JButton)c);
+      }
+    }
+  }
+  
+  private void removeFromIndex(Component c) {
+    String id = getToolbarId(c);
+    
+    if(id != null) {
+      List<JButton> buttons = toolbarIndex.get(id);
+      
+      if(buttons != null && buttons.remove(c) && buttons.isEmpty()) {
+        toolbarIndex.remove(id);
+      }
+    }
+  }
+  
+  private JButton findButton(String actionId) {
+    if(toolbarIndexStale) {
+      rebuildIndex(host.getControl());
+    }
+    
+    List<JButton> buttons = toolbarIndex.get(actionId);
+    return buttons == null ? null : buttons.get(0);
+  }
+  
+  /** Records a change of the toolbar that was not made by loading the categories, category buttons are left out. */
+  private void recordToolbarEvent(String kind, Component c, String... fields) {
+    if(isLoading || c instanceof JButton && ((JButton)c).getAction() instanceof ToolbarCategoryAction) {
+      return;
+    }
+    
+    String id = c instanceof JSeparator ? EventTrace.SEPARATOR : getToolbarId(c);
+    String[] values = new String[fields.length + 1];
+    values[0] = id != null ? id : "";
+    System.arraycopy(fields, 0, values, 1, fields.length);
+    trace.record(kind, values);
+  }
+  
+  /**
+   * Starts recording the events the plugin reacts to, the trace starts with the toolbar
+   * configuration and the current layout.
+   */
+  void startTrace() {
+    List<String> names = new ArrayList<>();
+    List<List<String>> items = new ArrayList<>();
+    
+    if(wasLoaded) {
+      serializeLayout(names, items);
+    }
+    else {
+      names.addAll(Config.getPref().getList(KEY_LIST_NAMES));
+      items.addAll(Config.getPref().getListOfLists(KEY_LIST_ITEMS));
+    }
+    
+    trace.start(Config.getPref().getList(KEY_TOOLBAR), names, items);
+    listeners.addPreferenceChangeListener(Scope.PLUGIN, tracePrefListener);
+  }
+  
+  /** Stops recording and writes the trace to the log. */
+  void stopTrace() {
+    if(trace.isStarted()) {
+      trace.stop();
+      listeners.release(Config.class, tracePrefListener);
+      Logging.info("ToolbarCategories event trace, replay with \"ant replay\":\n{0}", String.join("\n", trace.format()));
+    }
+  }
+  
+  EventTrace getTrace() {
+    return trace;
+  }
+  
+  private void handleComponentAdded() {
+    stats.count(Instrumentation.COMPONENT_ADDED);
+    lastAdded = scheduler.now();
+    scheduler.schedule(EVENT_COMPONENT_ADDED, this::reconcile);
+  }
+  
+  /**
+   * Brings the categories in line with the current toolbar content without rebuilding them:
+   * buttons of categorized actions that appeared on the toolbar are adopted into their category,
+   * items whose action vanished after the toolbar was refreshed are dropped and category buttons
+   * removed by the refresh are put back. Falls back to {@link #load()} if the layout in the
+   * preferences is not the one the categories were built from.
+   */
+  void reconcile() {
+    if(isLoading || isRestoreDeferred) {
+      return;
+    }
+    
+    if(!wasLoaded || !persister.matchesPreferences()) {
+      load();
+      return;
+    }
+    
+    long start = stats.start();
+    persister.flush();
+    
+    List<String> layoutNames = persister.getNames();
+    List<List<String>> layoutItems = persister.getItems();
+    
+    JToolBar toolbar = host.getControl();
+    isLoading = true;
+    
+    boolean refreshed = false;
+    
+    for(Category c : model.getCategories()) {
+      if(c.getParent() == null) {
+        refreshed |= toolbar.getComponentIndex(c.getButton()) == -1;
+      }
+    }
+    
+    Map<String, String> parents = getParents(layoutNames, layoutItems);
+    int adopted = 0;
+    int dropped = 0;
+    
+    for(int j = 0; j < layoutNames.size(); j++) {
+      String name = layoutNames.get(j);
+      List<String> list = j < layoutItems.size() ? layoutItems.get(j) : Collections.emptyList();
+      Category c = model.getByName(name);
+      
+      if(c != null && c.getParent() != null) {
+        adopted += reconcileSubcategory(c, list);
+        continue;
+      }
+      
+      if(c == null && parents.containsKey(name)) {
+        continue;
+      }
+      
+      Map<String, Component> present = new HashMap<>();
+      List<Component> separators = new LinkedList<>();
+      
+      if(c != null) {
+        for(Component item : c.getMenu().getComponents()) {
+          if(item instanceof JPopupMenu.Separator) {
+            separators.add(item);
+          }
+          else if(getToolbarId(item) != null) {
+            present.put(getToolbarId(item), item);
+          }
+          else if(item instanceof SubcategoryMenu) {
+            present.put(Category.subcategory(((SubcategoryMenu)item).category.getName()), item);
+          }
+        }
+      }
+      
+      List<String> entries = new ArrayList<>();
+      List<Component> views = new ArrayList<>();
+      int buttonIndex = -1;
+      
+      for(String actionId : list) {
+        if(Category.isSeparator(actionId)) {
+          entries.add(actionId);
+          views.add(separators.isEmpty() ? new JPopupMenu.Separator() : separators.remove(0));
+          continue;
+        }
+        
+        if(Category.isSubcategory(actionId)) {
+          Component item = present.remove(actionId);
+          
+          if(item != null) {
+            entries.add(actionId);
+            views.add(item);
+          }
+          
+          continue;
+        }
+        
+        JButton b = findButton(actionId);
+        Component item = present.remove(actionId);
+        
+        if(b != null && c == null) {
+          componentCurrent = b;
+          c = createCategory(name, false);
+          item = c.getMenu().getComponent(0);
+          adopted++;
+        }
+        else if(b != null) {
+          if(buttonIndex == -1) {
+            buttonIndex = toolbar.getComponentIndex(b);
+          }
+          
+          toolbar.remove(b);
+          removeFromIndex(b);
+          
+          if(item == null) {
+            JMenuItem added = addItem(c, b.getAction(), -1);
+            registerEnabled(c, added);
+            item = added;
+            adopted++;
+          }
+        }
+        else if(item != null && refreshed) {
+          unregisterEnabled(item);
+          item = null;
+          dropped++;
+        }
+        
+        if(item != null) {
+          entries.add(actionId);
+          views.add(item);
+        }
+      }
+      
+      if(c == null) {
+        continue;
+      }
+      
+      for(Component item : present.values()) {
+        unregisterEnabled(item);
+        dropped++;
+        
+        if(item instanceof SubcategoryMenu) {
+          removeCategory(((SubcategoryMenu)item).category);
+        }
+      }
+      
+      if(!entries.stream().anyMatch(entry -> !Category.isSeparator(entry))) {
+        toolbar.remove(c.getButton());
+        removeCategory(c);
+        continue;
+      }
+      
+      c.setEntries(entries);
+      
+      if(!views.equals(Arrays.asList(c.getMenu().getComponents()))) {
+        c.getMenu().removeAll();
+        views.forEach(c.getMenu()::add);
+      }
+      
+      if(toolbar.getComponentIndex(c.getButton()) == -1) {
+        toolbar.add(c.getButton(), buttonIndex >= 0 ? Math.min(buttonIndex, toolbar.getComponentCount()) : toolbar.getComponentCount());
+      }
+    }
+    
+    updateMiddleMouseButtonForOtherToolbarActions(false);
+    toolbar.revalidate();
+    toolbar.repaint();
+    
+    Logging.debug("ToolbarCategories: reconciled toolbar, {0} items adopted, {1} dropped, {2} listeners registered", adopted, dropped, listeners.getCount());
+    
+    isLoading = false;
+    stats.stop(Instrumentation.RECONCILE, start);
+  }
+  
+  /**
+   * Moves the buttons of a nested category that appeared on the toolbar into it, or parks
+   * their actions if it was not opened yet.
+   * @return the number of items added to the category
+   */
+  private int reconcileSubcategory(Category c, List<String> list) {
+    JToolBar toolbar = host.getControl();
+    int adopted = 0;
+    
+    for(String actionId : list) {
+      JButton b = Category.isSeparator(actionId) || Category.isSubcategory(actionId) ? null : findButton(actionId);
+      
+      if(b == null) {
+        continue;
+      }
+      
+      toolbar.remove(b);
+      removeFromIndex(b);
+      
+      if(c.getMenu() == null) {
+        if(park(c, actionId, b.getAction()) == null && !c.getEntries().contains(actionId)) {
+          c.addEntry(-1, actionId);
+          adopted++;
+        }
+      }
+      else if(!c.getEntries().contains(actionId)) {
+        addItem(c, b.getAction(), -1);
+        adopted++;
+      }
+    }
+    
+    return adopted;
+  }
+  
+  /** @return the search index over all categories, categories changed since the last call are indexed again */
+  QuickLaunchIndex getQuickLaunchIndex() {
+    quickLaunchIndex.retain(model.getCategories());
+    
+    for(Category c : model.getCategories()) {
+      if(!quickLaunchIndex.isCurrent(c)) {
+        List<QuickLaunchIndex.Entry> entries = new ArrayList<>();
+        String path = c.getPath(" \u203A ");
+        
+        if(c.getMenu() != null) {
+          for(Component item : c.getMenu().getComponents()) {
+            collectQuickLaunchEntries(item, path, entries);
           }
         }
-        else if(m.getComponent(i) instanceof JPopupMenu.Separator) {
-          items.add(SEPARATOR);
+        else {
+          for(String entry : c.getEntries()) {
+            Action a = parked.get(entry);
+            String label = a instanceof TaggingPreset ? ((TaggingPreset)a).getLocaleName() : a != null ? (String)a.getValue(Action.NAME) : null;
+            
+            if(label != null && !label.isBlank()) {
+              entries.add(new QuickLaunchIndex.Entry(label, path, a));
+            }
+          }
+        }
+        
+        quickLaunchIndex.update(c, entries);
+      }
+    }
+    
+    return quickLaunchIndex;
+  }
+  
+  private static void collectQuickLaunchEntries(Component item, String path, List<QuickLaunchIndex.Entry> entries) {
+    if(item instanceof SubcategoryMenu) {
+      return;
+    }
+    
+    if(item instanceof JMenu) {
+      String menuPath = path+" \u203A "+((JMenu)item).getText();
+      Component[] children = item instanceof PresetMenuCopy ? ((PresetMenuCopy)item).getItems() : ((JMenu)item).getMenuComponents();
+      
+      for(Component child : children) {
+        collectQuickLaunchEntries(child, menuPath, entries);
+      }
+    }
+    else if(item instanceof JMenuItem && ((JMenuItem)item).getAction() != null) {
+      Action a = ((JMenuItem)item).getAction();
+      String label = a instanceof TaggingPreset ? ((TaggingPreset)a).getLocaleName() : ((JMenuItem)item).getText();
+      
+      if(label != null && !label.isBlank()) {
+        entries.add(new QuickLaunchIndex.Entry(label, path, a));
+      }
+    }
+  }
+  
+  private void showQuickLaunch() {
+    restorePending();
+    
+    JToolBar toolbar = host.getControl();
+    
+    if(toolbar == null || !toolbar.isShowing() || model.isEmpty()) {
+      return;
+    }
+    
+    if(quickLaunch == null) {
+      quickLaunch = new QuickLaunchPopup(this::getQuickLaunchIndex, action -> usage.record(getToolbarId(action)));
+    }
+    
+    if(toolbar.getOrientation() == JToolBar.HORIZONTAL) {
+      quickLaunch.show(toolbar, 0, toolbar.getHeight());
+    }
+    else {
+      quickLaunch.show(toolbar, toolbar.getWidth(), 0);
+    }
+  }
+  
+  /**
+   * Replaces the presets in the categories by the reloaded ones with the same toolbar id. Copies
+   * of preset menus keep the items whose original is still there, copies that were not opened
+   * yet only get the reloaded menu as source. The toolbar is not touched.
+   */
+  void resyncPresets() {
+    long start = stats.start();
+    Map<String, TaggingPreset> current = new HashMap<>();
+    
+    for(TaggingPreset p : TaggingPresets.getTaggingPresets()) {
+      if(getToolbarId(p) != null) {
+        current.putIfAbsent(getToolbarId(p), p);
+      }
+    }
+    
+    int updated = 0;
+    
+    for(Category c : model.getCategories()) {
+      boolean changed = false;
+      
+      if(c.getMenu() != null) {
+        for(Component item : c.getMenu().getComponents()) {
+          if(item instanceof JMenuItem && ((JMenuItem)item).getAction() instanceof TaggingPreset) {
+            changed |= resyncPreset((JMenuItem)item, current.get(getToolbarId(item)));
+          }
+        }
+      }
+      else {
+        for(String entry : c.getEntries()) {
+          if(parked.get(entry) instanceof TaggingPreset && current.containsKey(entry) && parked.get(entry) != current.get(entry)) {
+            park(c, entry, current.get(entry));
+            changed = true;
+          }
+        }
+      }
+      
+      if(changed) {
+        // the caches of the primary action, the search and the menus listing the items follow it
+        c.viewsChanged();
+        updated++;
+      }
+    }
+    
+    presetPrimaryActions.clear();
+    
+    Logging.debug("ToolbarCategories: presets reloaded, {0} categories updated", updated);
+    stats.stop(Instrumentation.PRESETS, start);
+  }
+  
+  /** @return {@code true} if the item was changed to the reloaded preset */
+  private boolean resyncPreset(JMenuItem item, TaggingPreset p) {
+    if(p == null || p == item.getAction() || (item instanceof PresetMenuCopy) != (p instanceof TaggingPresetMenu)) {
+      return false;
+    }
+    
+    if(item instanceof PresetMenuCopy) {
+      ((PresetMenuCopy)item).resync(((TaggingPresetMenu)p).menu);
+    }
+    else {
+      item.setAction(p);
+      item.setText(p.getLocaleName());
+    }
+    
+    // the action brought its own icon, the disabled one still belongs to the old icon
+    setItemIcons(item, p);
+    
+    return true;
+  }
+  
+  CoalescingScheduler getScheduler() {
+    return scheduler;
+  }
+  
+  private void clearListener() {
+    listeners.release(Scope.CATEGORIES);
+    itemCounters.clear();
+    enabledCounters.clear();
+    primaryActions.clear();
+    arranged.clear();
+    manualOrders.clear();
+    presetPrimaryActions.clear();
+  }
+  
+  void save() {
+    long start = stats.start();
+    persister.markDirty();
+    stats.stop(Instrumentation.SAVE, start);
+  }
+  
+  LayoutPersister getPersister() {
+    return persister;
+  }
+  
+  CategoryModel getModel() {
+    return model;
+  }
+  
+  Instrumentation getInstrumentation() {
+    return stats;
+  }
+  
+  /** @return the recorded timings followed by the number of live categories, items and listeners */
+  String getDiagnostics() {
+    StringBuilder b = new StringBuilder();
+    stats.appendTo(b);
+    
+    int items = 0;
+    int separators = 0;
+    
+    for(Category c : model.getCategories()) {
+      for(String entry : c.getEntries()) {
+        if(Category.isSeparator(entry)) {
+          separators++;
         }
+        else if(!Category.isSubcategory(entry)) {
+          items++;
+        }
+      }
+    }
+    
+    b.append('\n');
+    b.append("categories: ").append(model.size()).append('\n');
+    b.append("nested categories: ").append(model.getCategories().stream().filter(c -> c.getParent() != null).count()).append(", not opened yet: ").append(model.getCategories().stream().filter(c -> c.getMenu() == null).count()).append(", parked actions: ").append(parked.size()).append('\n');
+    b.append("items: ").append(items).append(", separators: ").append(separators).append('\n');
+    b.append("items watched for enabled state: ").append(itemCounters.size()).append('\n');
+    b.append("toolbar ids on toolbar: ").append(toolbarIndex.size()).append('\n');
+    b.append("search index entries: ").append(quickLaunchIndex.size()).append('\n');
+    b.append("cached icons: ").append(buttonIcons.size()).append(" buttons, ").append(itemIcons.size()).append(" items\n");
+    b.append("listeners: ").append(listeners.getCount());
+    
+    for(Scope scope : Scope.values()) {
+      b.append(", ").append(scope).append(": ").append(listeners.getCount(scope));
+    }
+    
+    b.append('\n');
+    b.append("layout writes: ").append(persister.getWrites()).append(", skipped: ").append(persister.getSkipped()).append('\n');
+    b.append("usage counters: ").append(usage.size()).append('\n');
+    b.append("EDT check: ").append(EdtConfinement.isEnabled() ? "on" : "off").append('\n');
+    b.append("event trace: ").append(trace.size()).append(" events").append(trace.isStarted() ? ", recording" : "").append(trace.isTruncated() ? ", truncated" : "").append('\n');
+    
+    return b.toString();
+  }
+  
+  private void showDiagnostics() {
+    String toggle = stats.isEnabled() ? tr("Stop recording") : tr("Start recording");
+    String traceToggle = trace.isStarted() ? tr("Stop event trace") : tr("Start event trace");
+    Object[] options = {toggle, traceToggle, tr("Reset"), tr("Write to log"), tr("Close")};
+    
+    JTextArea text = new JTextArea(getDiagnostics());
+    text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, text.getFont().getSize()));
+    text.setEditable(false);
+    
+    int choice = JOptionPane.showOptionDialog(MainApplication.getMainFrame(), new JScrollPane(text), tr("Toolbar categories diagnostics"), JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[options.length-1]);
+    
+    if(choice == 0) {
+      Config.getPref().putBoolean(KEY_DIAGNOSTICS, !stats.isEnabled());
+      stats.setEnabled(!stats.isEnabled());
+      showDiagnostics();
+    }
+    else if(choice == 1) {
+      if(trace.isStarted()) {
+        stopTrace();
       }
+      else {
+        startTrace();
+      }
+      
+      showDiagnostics();
+    }
+    else if(choice == 2) {
+      stats.reset();
+      showDiagnostics();
+    }
+    else if(choice == 3) {
+      Logging.info("ToolbarCategories diagnostics:\n{0}", getDiagnostics());
     }
+  }
+  
+  private void serializeLayout(List<String> names, List<List<String>> itemList) {
+    model.writeLayout(names, itemList);
     
-    Config.getPref().putListOfLists(KEY_LIST_ITEMS, itemList);
+    // categories ordered by usage are saved in the order the user gave them
+    for(Map.Entry<Category, List<String>> e : manualOrders.entrySet()) {
+      int i = names.indexOf(e.getKey().getName());
+      
+      if(i >= 0) {
+        List<String> entries = itemList.get(i);
+        List<String> manual = new ArrayList<>(entries.size());
+        
+        for(int k : getOrder(entries, entry -> getManualRank(e.getValue(), entry))) {
+          manual.add(entries.get(k));
+        }
+        
+        itemList.set(i, manual);
+      }
+    }
   }
   
   private void updateMiddleMouseButtonForOtherToolbarActions(boolean oldValue) {
-    JToolBar toolbar = MainApplication.getToolbar().control;
+    JToolBar toolbar = host.getControl();
     
     if(oldValue && !middleMouseButtonForOtherToolbarActions) {
       for(int k = 0; k < toolbar.getComponentCount(); k++) {
         Component c = toolbar.getComponent(k);
         
         if(c instanceof JButton && !(((JButton)c).getAction() instanceof ToolbarCategoryAction)) {
-          c.removeMouseListener(buttonsAdapter);
+          listeners.release(c, buttonsAdapter);
         }
       }
     }
@@ -713,22 +2354,386 @@ public class ToolbarCategoriesPlugin extends Plugin {
         Component c = toolbar.getComponent(k);
         
         if(c instanceof JButton && !(((JButton)c).getAction() instanceof ToolbarCategoryAction)) {
-          c.addMouseListener(buttonsAdapter);
+          listeners.addMouseListener(Scope.CATEGORIES, c, buttonsAdapter);
+        }
+      }
+    }
+  }
+  
+  private static final class PrimaryAction {
+    private final int modCount;
+    /** modification count of the usage counters, {@code -1} if the first item is used */
+    private final int usageCount;
+    /** entry of the item the action was found in */
+    private final String entry;
+    private final Action action;
+    
+    private PrimaryAction(int modCount, int usageCount, String entry, Action action) {
+      this.modCount = modCount;
+      this.usageCount = usageCount;
+      this.entry = entry;
+      this.action = action;
+    }
+  }
+  
+  private static final class Arranged {
+    private final int modCount;
+    private final int usageCount;
+    
+    private Arranged(int modCount, int usageCount) {
+      this.modCount = modCount;
+      this.usageCount = usageCount;
+    }
+  }
+  
+  /**
+   * Enabled items of one category, the category button or the submenu of a nested category
+   * is only touched when their number crosses zero.
+   */
+  private static final class EnabledCounter {
+    private final AbstractButton button;
+    private final Set<Object> enabledItems;
+    private boolean deferred;
+    
+    private EnabledCounter(AbstractButton button) {
+      this.button = button;
+      enabledItems = new HashSet<>();
+    }
+    
+    /** While deferred the button is not touched, it is updated once when no longer deferred. */
+    private void setDeferred(boolean deferred) {
+      this.deferred = deferred;
+      
+      if(!deferred) {
+        button.setEnabled(!enabledItems.isEmpty());
+      }
+    }
+    
+    private void update(Object item, boolean enabled) {
+      EdtConfinement.check("enabled state of a category");
+      boolean wasEnabled = !enabledItems.isEmpty();
+      
+      if(enabled) {
+        enabledItems.add(item);
+      }
+      else {
+        enabledItems.remove(item);
+      }
+      
+      if(!deferred && wasEnabled == enabledItems.isEmpty()) {
+        button.setEnabled(!enabledItems.isEmpty());
+      }
+    }
+  }
+  
+  /**
+   * Copy of a preset menu, each level is copied from the original when it is opened for the first time.
+   * The enabled state follows the action of the original menu, so there is no need to watch the items.
+   */
+  private static final class PresetMenuCopy extends JMenu {
+    private JMenu source;
+    
+    private PresetMenuCopy(JMenu source) {
+      super(source.getAction());
+      setText(source.getText());
+      this.source = source;
+      
+      addMenuListener(new MenuListener() {
+        @Override
+        public void menuSelected(MenuEvent e) {
+          fill();
+        }
+        
+        @Override
+        public void menuDeselected(MenuEvent e) {}
+        
+        @Override
+        public void menuCanceled(MenuEvent e) {}
+      });
+    }
+    
+    /** @return the items of this menu, of the original menu if they were not copied yet */
+    private Component[] getItems() {
+      return source != null ? source.getMenuComponents() : getMenuComponents();
+    }
+    
+    private void fill() {
+      if(source != null) {
+        JMenu menu = source;
+        source = null;
+        
+        for(int i = 0; i < menu.getMenuComponentCount(); i++) {
+          Component item = copy(menu.getMenuComponent(i));
+          
+          if(item != null) {
+            add(item);
+          }
+        }
+      }
+    }
+    
+    /**
+     * Takes the given reloaded menu as original. Copied items whose original has the same
+     * kind and text in the reloaded menu are kept and only get the reloaded action.
+     */
+    private void resync(JMenu menu) {
+      setAction(menu.getAction());
+      setText(menu.getText());
+      
+      if(source != null) {
+        source = menu;
+        return;
+      }
+      
+      Map<String, List<Component>> copies = new HashMap<>();
+      
+      for(Component item : getMenuComponents()) {
+        if(getKey(item) != null) {
+          copies.computeIfAbsent(getKey(item), k -> new LinkedList<>()).add(item);
+        }
+      }
+      
+      List<Component> items = new ArrayList<>(menu.getMenuComponentCount());
+      
+      for(Component original : menu.getMenuComponents()) {
+        List<Component> candidates = copies.getOrDefault(getKey(original), Collections.emptyList());
+        boolean kept = !candidates.isEmpty();
+        Component item = kept ? candidates.remove(0) : copy(original);
+        
+        if(kept && item instanceof PresetMenuCopy) {
+          ((PresetMenuCopy)item).resync((JMenu)original);
+        }
+        else if(kept && item instanceof JMenuItem && ((JMenuItem)item).getAction() != ((JMenuItem)original).getAction()) {
+          ((JMenuItem)item).setAction(((JMenuItem)original).getAction());
+          ((JMenuItem)item).setText(((JMenuItem)original).getText());
+        }
+        
+        if(item != null) {
+          items.add(item);
+        }
+      }
+      
+      if(!items.equals(Arrays.asList(getMenuComponents()))) {
+        removeAll();
+        items.forEach(this::add);
+      }
+    }
+    
+    private Component copy(Component original) {
+      if(original instanceof JMenu) {
+        return new PresetMenuCopy((JMenu)original);
+      }
+      else if(original instanceof JMenuItem) {
+        JMenuItem item = createActionComponent(((JMenuItem)original).getAction());
+        item.setAction(((JMenuItem)original).getAction());
+        item.setText(((JMenuItem)original).getText());
+        return item;
+      }
+      else if(original instanceof JPopupMenu.Separator) {
+        return new JPopupMenu.Separator();
+      }
+      
+      return null;
+    }
+    
+    /** @return key of the kind and text of an item, {@code null} for unknown components */
+    private static String getKey(Component item) {
+      if(item instanceof JMenu) {
+        return "menu:"+((JMenu)item).getText();
+      }
+      else if(item instanceof JMenuItem) {
+        return "item:"+((JMenuItem)item).getText();
+      }
+      else if(item instanceof JPopupMenu.Separator) {
+        return "separator";
+      }
+      
+      return null;
+    }
+  }
+  
+  /**
+   * Submenus of the category management menu. Their entries are pooled and bound to the
+   * managed category by index, they are only refreshed when another category is managed or
+   * the category or the model changed since the last refresh.
+   */
+  private final class ManagementMenu {
+    private final JMenu removeAction;
+    private final JMenu addSeparatorAction;
+    private final JMenu nestAction;
+    
+    private final List<PooledItem> removeItems;
+    private final List<PooledItem> separatorItems;
+    private final List<PooledItem> nestItems;
+    private final List<PooledSeparator> removeSeparators;
+    private final List<JPopupMenu.Separator> separators;
+    
+    private Category category;
+    private int modCount;
+    private int modelModCount;
+    
+    private ManagementMenu() {
+      addSeparatorAction = new JMenu(tr("Add separator above"));
+      addSeparatorAction.setEnabled(false);
+      removeAction = new JMenu(tr("Remove element"));
+      removeAction.setEnabled(false);
+      nestAction = new JMenu(tr("Move into category"));
+      nestAction.setEnabled(false);
+      
+      removeItems = new ArrayList<>();
+      separatorItems = new ArrayList<>();
+      nestItems = new ArrayList<>();
+      removeSeparators = new ArrayList<>();
+      separators = new ArrayList<>();
+    }
+    
+    private void refresh(Category c) {
+      if(c == category && c.getModCount() == modCount && model.getModCount() == modelModCount) {
+        return;
+      }
+      
+      category = c;
+      modCount = c.getModCount();
+      modelModCount = model.getModCount();
+      
+      removeAction.removeAll();
+      addSeparatorAction.removeAll();
+      nestAction.removeAll();
+      
+      JPopupMenu m = c.getMenu();
+      int items = 0;
+      int separatorCount = 0;
+      
+      for(int i = 1; i < m.getComponentCount(); i++) {
+        if(m.getComponent(i) instanceof JMenuItem) {
+          JMenuItem item = (JMenuItem)m.getComponent(i);
+          
+          if(items == removeItems.size()) {
+            removeItems.add(new PooledItem(p -> removeElement(p.index)));
+            separatorItems.add(new PooledItem(p -> addSeparator(p.index)));
+          }
+          
+          removeAction.add(removeItems.get(items).bind(item.getText(), item.getIcon(), i, null));
+          addSeparatorAction.add(separatorItems.get(items).bind(item.getText(), item.getIcon(), i, null));
+          items++;
+        }
+        else if(m.getComponent(i) instanceof JPopupMenu.Separator) {
+          if(separatorCount == removeSeparators.size()) {
+            removeSeparators.add(new PooledSeparator());
+            separators.add(new JPopupMenu.Separator());
+          }
+          
+          removeSeparators.get(separatorCount).index = i;
+          removeAction.add(removeSeparators.get(separatorCount));
+          addSeparatorAction.add(separators.get(separatorCount));
+          separatorCount++;
+        }
+      }
+      
+      removeAction.setEnabled(removeAction.getItemCount() > 0);
+      addSeparatorAction.setEnabled(removeAction.getItemCount() > 0);
+      
+      int targets = 0;
+      
+      for(Category target : model.getCategories()) {
+        if(!isNestedIn(target, c)) {
+          if(targets == nestItems.size()) {
+            nestItems.add(new PooledItem(p -> nestCategory(category, p.target)));
+          }
+          
+          nestAction.add(nestItems.get(targets++).bind(target.getPath(" \u203A "), null, -1, target));
         }
       }
+      
+      for(int i = targets; i < nestItems.size(); i++) {
+        nestItems.get(i).target = null;
+      }
+      
+      nestAction.setEnabled(nestAction.getItemCount() > 0);
+    }
+    
+    private void removeElement(int n) {
+      unregisterEnabled(category.getMenu().getComponent(n));
+      removeEntry(category, n);
+      save();
+      host.refresh();
+    }
+    
+    private void addSeparator(int n) {
+      insertEntry(category, n, Category.SEPARATOR, new JPopupMenu.Separator());
+      save();
+    }
+    
+    private void clear() {
+      category = null;
+      removeAction.removeAll();
+      addSeparatorAction.removeAll();
+      nestAction.removeAll();
+      
+      for(PooledItem item : nestItems) {
+        item.target = null;
+      }
+    }
+    
+    /** A reusable entry, it acts on the item at {@link #index} of the managed category or on {@link #target}. */
+    private final class PooledItem extends JMenuItem {
+      private int index;
+      private Category target;
+      
+      private PooledItem(Consumer<PooledItem> action) {
+        addActionListener(e -> action.accept(this));
+      }
+      
+      private PooledItem bind(String text, Icon icon, int index, Category target) {
+        setText(text);
+        setIcon(icon);
+        this.index = index;
+        this.target = target;
+        return this;
+      }
+    }
+    
+    /** A reusable entry removing the separator at {@link #index} of the managed category. */
+    private final class PooledSeparator extends JPopupMenu.Separator {
+      private int index;
+      
+      private PooledSeparator() {
+        addMouseListener(new MouseAdapter() {
+          @Override
+          public void mouseClicked(MouseEvent e) {
+            removeEntry(category, index);
+            categoryMenu.setVisible(false);
+            save();
+          }
+        });
+      }
+    }
+  }
+  
+  /** Menu of a nested category in the menu of its parent. */
+  private static final class SubcategoryMenu extends JMenu {
+    private final Category category;
+    
+    private SubcategoryMenu(Category category) {
+      super(category.getName());
+      this.category = category;
     }
   }
   
   private static final class ToolbarCategoryAction extends AbstractAction {
     private JButton parent;
     private JPopupMenu menu;
+    private CategoryListPopup listPopup;
+    /** brings the menu up to date before it is shown */
+    private final Runnable beforeShow;
     
-    public ToolbarCategoryAction(JPopupMenu menu, String name, JButton componentCurrent) {
+    public ToolbarCategoryAction(JPopupMenu menu, String name, Icon icon, Runnable beforeShow) {
       this.menu = menu;
+      this.beforeShow = beforeShow;
       putValue("toolbar", ToolbarCategoriesPlugin.class.getSimpleName()+"-"+System.currentTimeMillis()+"_"+Math.random()*10000);
       putValue(Action.NAME, name);
       putValue(Action.SHORT_DESCRIPTION, name);
-      putValue(Action.LARGE_ICON_KEY, componentCurrent.getIcon());
+      putValue(Action.LARGE_ICON_KEY, icon);
     }
     
     public void setParent(JButton parent) {
@@ -738,8 +2743,21 @@ public class ToolbarCategoriesPlugin extends Plugin {
     @Override
     public void actionPerformed(ActionEvent e) {
       if(parent != null) {
+        beforeShow.run();
+        
         Point p = parent.getMousePosition();
-        menu.show(parent, p.x, p.y);
+        int listPopupSize = Config.getPref().getInt(KEY_LIST_POPUP_SIZE, 40);
+        
+        if(listPopupSize > 0 && menu.getComponentCount() > listPopupSize) {
+          if(listPopup == null) {
+            listPopup = new CategoryListPopup(menu);
+          }
+          
+          listPopup.show(parent, p.x, p.y);
+        }
+        else {
+          menu.show(parent, p.x, p.y);
+        }
       }
     }
   }
@@ -0,0 +1,29 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import javax.swing.JToolBar;
+
+import org.openstreetmap.josm.gui.MainApplication;
+
+/**
+ * The toolbar the categories live in. Normally the toolbar of JOSM, benchmarks
+ * and trace replays provide their own.
+ */
+interface ToolbarHost {
+  ToolbarHost JOSM = new ToolbarHost() {
+    @Override
+    public JToolBar getControl() {
+      return MainApplication.getToolbar() != null ? MainApplication.getToolbar().control : null;
+    }
+    
+    @Override
+    public void refresh() {
+      MainApplication.getToolbar().refreshToolbarControl();
+    }
+  };
+  
+  /** @return the toolbar component, {@code null} if there is none */
+  JToolBar getControl();
+  
+  /** Recreates all buttons of the toolbar from its configuration. */
+  void refresh();
+}
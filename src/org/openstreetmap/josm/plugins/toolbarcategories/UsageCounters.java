@@ -0,0 +1,133 @@
+package org.openstreetmap.josm.plugins.toolbarcategories;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Recent usage of the actions in the categories, keyed by toolbar id.
+ * <p>
+ * Each use adds one to the score of an action and scores halve every {@link #HALF_LIFE},
+ * so they follow what was used lately. A use only updates the counters in memory, they
+ * are written to the preferences in one batch once the quiet period of the event
+ * scheduled by the first unwritten use has passed, later uses do not delay it. They may
+ * also be flushed from any thread, e.g. by the shutdown hook.
+ */
+final class UsageCounters {
+  static final long HALF_LIFE = 7L * 24 * 60 * 60 * 1000;
+  /** number of counters written, the least used ones are dropped */
+  private static final int MAX_ENTRIES = 500;
+  /** score below which a counter is dropped when written */
+  private static final double MIN_SCORE = 0.01;
+  
+  private final String key;
+  private final CoalescingScheduler scheduler;
+  private final String event;
+  /** toolbar id -> usage, {@code null} until read */
+  private Map<String, Usage> usage;
+  private int modCount;
+  private boolean dirty;
+  
+  UsageCounters(String key, CoalescingScheduler scheduler, String event) {
+    this.key = key;
+    this.scheduler = scheduler;
+    this.event = event;
+  }
+  
+  /** Counts a use of the action with the given toolbar id. */
+  synchronized void record(String id) {
+    if(id == null) {
+      return;
+    }
+    
+    long now = scheduler.now();
+    getUsage().computeIfAbsent(id, k -> new Usage(0, now)).add(now);
+    modCount++;
+    dirty = true;
+    
+    if(!scheduler.isPending(event)) {
+      scheduler.schedule(event, this::flush);
+    }
+  }
+  
+  /** @return the score of the action with the given toolbar id, {@code 0} if it was not used */
+  synchronized double getScore(String id) {
+    Usage u = getUsage().get(id);
+    return u != null ? u.getScore(scheduler.now()) : 0;
+  }
+  
+  /** @return a counter increased on every use, for caches of derived orders */
+  synchronized int getModCount() {
+    return modCount;
+  }
+  
+  synchronized int size() {
+    return usage != null ? usage.size() : 0;
+  }
+  
+  /** Writes the counters if they changed since they were written last. */
+  synchronized void flush() {
+    if(!dirty) {
+      return;
+    }
+    
+    dirty = false;
+    long now = scheduler.now();
+    List<Map.Entry<String, Usage>> sorted = new ArrayList<>(usage.entrySet());
+    sorted.sort((a, b) -> Double.compare(b.getValue().getScore(now), a.getValue().getScore(now)));
+    
+    List<List<String>> rows = new ArrayList<>(Math.min(sorted.size(), MAX_ENTRIES));
+    
+    for(Map.Entry<String, Usage> e : sorted) {
+      if(rows.size() == MAX_ENTRIES || e.getValue().getScore(now) < MIN_SCORE) {
+        break;
+      }
+      
+      rows.add(List.of(e.getKey(), Double.toString(e.getValue().score), Long.toString(e.getValue().time)));
+    }
+    
+    Config.getPref().putListOfLists(key, rows.isEmpty() ? null : rows);
+  }
+  
+  private Map<String, Usage> getUsage() {
+    if(usage == null) {
+      usage = new HashMap<>();
+      
+      for(List<String> row : Config.getPref().getListOfLists(key)) {
+        try {
+          if(row.size() == 3) {
+            usage.put(row.get(0), new Usage(Double.parseDouble(row.get(1)), Long.parseLong(row.get(2))));
+          }
+        }
+        catch(NumberFormatException e) {
+          // a broken counter starts again from zero
+        }
+      }
+    }
+    
+    return usage;
+  }
+  
+  /** Score of an action at the time of its last use. */
+  private static final class Usage {
+    private double score;
+    private long time;
+    
+    private Usage(double score, long time) {
+      this.score = score;
+      this.time = time;
+    }
+    
+    private double getScore(long now) {
+      return now <= time ? score : score * Math.pow(0.5, (double)(now - time) / HALF_LIFE);
+    }
+    
+    private void add(long now) {
+      score = getScore(now) + 1;
+      time = Math.max(time, now);
+    }
+  }
+}